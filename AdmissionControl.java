@@ -0,0 +1,130 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether the server takes on a request or sheds it, so a burst of clients (such as
+ * every content server reconnecting after a network blip) queues briefly instead of slowing
+ * everyone down. A request is turned away when:
+ *  - its client has used up its token bucket (when a rate limit is set), or
+ *  - it already waited too long to be picked up, as in the nio engine's worker queue, or
+ *  - maxConcurrent requests are being handled and maxQueued more are waiting, or one
+ *    waits longer than the queue delay for its turn.
+ * Rejected clients are told how many seconds to wait before retrying.
+ */
+public class AdmissionControl {
+    private static final long MAX_QUEUE_DELAY = TimeUnit.SECONDS.toNanos(2);
+    private static final long IDLE_BUCKET_SWEEP = TimeUnit.SECONDS.toNanos(60);
+
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final double ratePerSecond;
+    private final double burst;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final long idleAfter; // by then a bucket has refilled completely
+    private volatile long lastSweep = System.nanoTime();
+    private final ServerMetrics.Counter rejected;
+
+    // Refilled at ratePerSecond up to burst tokens; one token per request
+    private static final class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        // Returns 0 if a token was taken, otherwise nanoseconds until the next one
+        synchronized long take(long now, double ratePerSecond, double burst) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerSecond / 1e9);
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1e9 / ratePerSecond);
+        }
+
+        synchronized boolean idleSince(long time) {
+            return refilledAt < time;
+        }
+    }
+
+    /** ratePerSecond of 0 turns off per-client rate limiting. */
+    public AdmissionControl(int maxConcurrent, int maxQueued, double ratePerSecond, double burst, ServerMetrics metrics) {
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxQueued = maxQueued;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(1, burst);
+        this.idleAfter = ratePerSecond > 0
+                ? Math.max(IDLE_BUCKET_SWEEP, (long) (this.burst / ratePerSecond * 1e9)) : IDLE_BUCKET_SWEEP;
+        this.rejected = metrics.counter("weather_rejected_requests_total",
+                "Requests answered 503 by admission control, by reason.", "reason");
+        metrics.gauge("weather_requests_in_flight", "Requests being handled.", () -> maxConcurrent - permits.availablePermits());
+        metrics.gauge("weather_requests_queued", "Requests waiting for a turn to be handled.", waiting::get);
+    }
+
+    /**
+     * Admits a request received at receivedAt (System.nanoTime()), waiting for a turn if
+     * needed. Returns 0 if it was admitted, in which case release() must follow once it is
+     * handled, or else the number of seconds the client should wait before retrying.
+     */
+    public long admit(String clientAddress, long receivedAt) throws InterruptedException {
+        long now = System.nanoTime();
+        if (ratePerSecond > 0) {
+            TokenBucket bucket = buckets.get(clientAddress);
+            if (bucket == null) {
+                sweepIdleBuckets(now);
+                bucket = buckets.computeIfAbsent(clientAddress, key -> new TokenBucket(burst, now));
+            }
+            long wait = bucket.take(now, ratePerSecond, burst);
+            if (wait > 0) {
+                rejected.inc("rate_limit");
+                return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+            }
+        }
+        if (now - receivedAt > MAX_QUEUE_DELAY) {
+            rejected.inc("queue_timeout");
+            return 1;
+        }
+        if (permits.tryAcquire()) {
+            return 0;
+        }
+        if (waiting.incrementAndGet() > maxQueued) {
+            waiting.decrementAndGet();
+            rejected.inc("queue_full");
+            return 1;
+        }
+        try {
+            if (permits.tryAcquire(MAX_QUEUE_DELAY - (now - receivedAt), TimeUnit.NANOSECONDS)) {
+                return 0;
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        rejected.inc("queue_timeout");
+        return 1;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /** Counts a request the server turned away before it got to admit(), such as when its engine's queue was full. */
+    public void shed(String reason) {
+        rejected.inc(reason);
+    }
+
+    // A bucket untouched for a while has refilled completely, so dropping it changes nothing
+    private void sweepIdleBuckets(long now) {
+        if (now - lastSweep < IDLE_BUCKET_SWEEP) {
+            return;
+        }
+        lastSweep = now;
+        buckets.values().removeIf(bucket -> bucket.idleSince(now - idleAfter));
+    }
+}
@@ -1,276 +1,1472 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class AggregationServer {
     private static int port = 4567;
     private static final String filePath = "weather_data.json";
-    private static int lamportClock = 0;
-    private static final Object lock = new Object();
-    private static Map<String, Long> contentServersLastContact = new HashMap<>();
+    private static final AtomicLong lamportClock = new AtomicLong();
+    // Clocks sent to clients are covered by a logged lease, so a restart never goes back below them;
+    // receive ticks (GETs, rejected PUTs) are not logged otherwise
+    private static final long CLOCK_LEASE = 10000;
+    private static final Object clockLeaseLock = new Object();
+    private static volatile long leasedClock;
+    private static volatile CompletableFuture<Void> leaseCommit = CompletableFuture.completedFuture(null);
+    private static final AtomicLong durableLease = new AtomicLong();
+    // Writers lock only the stripe of the station they change; readers never lock
+    private static final Object[] stripes = new Object[64];
+    private static final StationStore store = new StationStore();
+    // Served as GET /metrics; recorded on LongAdders so the hot paths never contend on them
+    private static final ServerMetrics metrics = new ServerMetrics();
+    private static final ServerMetrics.Counter requestsTotal = metrics.counter("weather_requests_total",
+            "Requests handled, by method, path and status code.", "method", "path", "code");
+    private static final ServerMetrics.Timer requestDuration = metrics.timer("weather_request_duration_seconds",
+            "Time to handle a request, from parsed request to response ready to write.", "method", "path");
+    private static final ServerMetrics.Timer lockWait = metrics.timer("weather_stripe_lock_wait_seconds",
+            "Time spent waiting for station stripe locks, by operation.", "operation");
+    private static final ServerMetrics.Timer lockHold = metrics.timer("weather_stripe_lock_hold_seconds",
+            "Time station stripe locks were held, by operation.", "operation");
+    private static final ServerMetrics.Counter expiredContentServers = metrics.counter(
+            "weather_expired_content_servers_total", "Content servers whose stations expired after they went quiet.");
+    private static final ServerMetrics.Counter expiredStations = metrics.counter("weather_expired_stations_total",
+            "Stations removed because their content server went quiet.");
+    private static final LongAdder connectionsOpen = new LongAdder();    // blocking engines
+    private static final LongAdder connectionsAccepted = new LongAdder();
+    private static final Set<String> metricPaths = new HashSet<>(Arrays.asList("/weather.json", "/events",
+            "/replication", "/history", "/stats", "/metrics", "/heartbeat", "/promote", "/ring", "/handoff"));
+    private static SelectorServer selectorServer;
+    // Admission control: sheds requests with 503 and Retry-After instead of queueing without bound
+    private static int maxConcurrent; // 0 for one per worker thread
+    private static int maxQueued = 256;
+    private static int maxConnections = 1024; // thread engine: beyond this, connections wait in the accept backlog
+    private static double rateLimit; // requests per second per client address, 0 for no limit
+    private static double rateBurst;
+    private static AdmissionControl admission;
+    private static final WriteAheadLog wal = new WriteAheadLog(filePath, metrics);
+    private static int historySamples = 360; // one hour at the content server's 10 second interval
+    private static StationHistory history;
+    private static int changeLogSize = 10000;
+    private static ChangeLog changes;
+    private static SubscriptionHub subscriptions;
+    // Replication: a primary feeds backups from its change log; a backup follows one and is read-only
+    private static SubscriptionHub replicas;
+    private static String replicaOf;
+    private static int promoteAfterSeconds;
+    private static volatile ReplicationFollower follower;
+    // Sharding: stations are spread over several nodes by a consistent hash of their id
+    private static String shardNodes;
+    private static String self; // this node in the shard list; localhost:<port> by default
+    private static ShardRouter shards;
+    private static final int STATS_WINDOW = 5 * 60 * 1000; // 5 minute tumbling windows
+    private static final StateStatistics stats = new StateStatistics(STATS_WINDOW, 12);
+
+    // Bumped on every change to the store; the cached GET body is rebuilt when it moves on
+    private static final AtomicLong dataVersion = new AtomicLong();
+    // Batches apply under their stripes only; the snapshot encoder retries if it overlapped one
+    private static final AtomicInteger batchesInProgress = new AtomicInteger();
+    private static final AtomicLong batchesApplied = new AtomicLong();
+    private static final String etagPrefix = Long.toHexString(System.currentTimeMillis());
+    private static volatile CachedSnapshot cachedSnapshot = new CachedSnapshot(-1, new byte[0]);
+    private static Map<String, Long> contentServersLastContact = new ConcurrentHashMap<>();
     private static final int TIMEOUT = 30 * 1000; // 30 seconds
+    private static final ExpiryScheduler expiry = new ExpiryScheduler();
+    private static final int COMPACTION_INTERVAL = 60 * 1000; // 60 seconds
+    private static final int KEEP_ALIVE_TIMEOUT = 15 * 1000; // longer than the content server push interval
+    // The pool engine's few threads each hold a connection while it idles, so it lets them go sooner
+    private static final int POOL_KEEP_ALIVE_TIMEOUT = 2 * 1000;
+    private static final int MAX_REQUESTS_PER_CONNECTION = 1000;
+
+    // Encoded GET body for one data version; replaced as a whole, and only its compressed
+    // forms are filled in later, once each, by the first request that accepts them
+    private static final class CachedSnapshot {
+        final long version;
+        final byte[] body;
+        final String etag;
+        private byte[] gzip;
+        private byte[] deflate;
+
+        CachedSnapshot(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+            this.etag = "\"" + etagPrefix + "-" + version + "\"";
+        }
 
-    public static void main(String[] args) throws IOException {
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
+        // Each representation gets its own ETag, as their bytes differ
+        String etag(String encoding) {
+            return encoding == null ? etag : "\"" + etagPrefix + "-" + version + "-" + encoding + "\"";
         }
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Server started on port " + port);
 
-        // Start a thread to clean old entries
-        new Thread(AggregationServer::cleanOldEntries).start();
+        synchronized byte[] compressed(String encoding) {
+            if (encoding.equals("gzip")) {
+                if (gzip == null) {
+                    gzip = compress(body, true);
+                }
+                return gzip;
+            }
+            if (deflate == null) {
+                deflate = compress(body, false);
+            }
+            return deflate;
+        }
+    }
+
+    // Server engine: "thread" (one thread per connection), "pool", "virtual" or "nio"
+    private static String engine = "nio";
+    private static int workerThreads = 16;
+    private static ThreadPoolExecutor connectionPool; // pool engine, or virtual without virtual threads
+
+    static {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long startedAt = System.nanoTime();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--workers=")) {
+                workerThreads = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.startsWith("--history=")) {
+                historySamples = Integer.parseInt(arg.substring("--history=".length()));
+            } else if (arg.startsWith("--changelog=")) {
+                changeLogSize = Integer.parseInt(arg.substring("--changelog=".length()));
+            } else if (arg.startsWith("--replica-of=")) {
+                replicaOf = arg.substring("--replica-of=".length());
+            } else if (arg.startsWith("--promote-after=")) {
+                promoteAfterSeconds = Integer.parseInt(arg.substring("--promote-after=".length()));
+            } else if (arg.startsWith("--shards=")) {
+                shardNodes = arg.substring("--shards=".length());
+            } else if (arg.startsWith("--self=")) {
+                self = arg.substring("--self=".length());
+            } else if (arg.startsWith("--max-concurrent=")) {
+                maxConcurrent = Integer.parseInt(arg.substring("--max-concurrent=".length()));
+            } else if (arg.startsWith("--max-queue=")) {
+                maxQueued = Integer.parseInt(arg.substring("--max-queue=".length()));
+            } else if (arg.startsWith("--max-connections=")) {
+                maxConnections = Integer.parseInt(arg.substring("--max-connections=".length()));
+            } else if (arg.startsWith("--rate-limit=")) {
+                // <requests per second>[,<burst>]; the burst defaults to two seconds' worth
+                String[] limit = arg.substring("--rate-limit=".length()).split(",");
+                rateLimit = Double.parseDouble(limit[0]);
+                rateBurst = limit.length > 1 ? Double.parseDouble(limit[1]) : 2 * rateLimit;
+            } else {
+                port = Integer.parseInt(arg);
+            }
+        }
+        history = new StationHistory(historySamples);
+        // More permits than workers never bind on the nio and pool engines, whose workers are the limit
+        if (maxConcurrent <= 0) {
+            maxConcurrent = workerThreads;
+        }
+        admission = new AdmissionControl(maxConcurrent, maxQueued, rateLimit, rateBurst, metrics);
+        changes = new ChangeLog(changeLogSize);
+        subscriptions = new SubscriptionHub(changes, etagPrefix, false);
+        replicas = new SubscriptionHub(changes, etagPrefix, true);
 
         // Restore data from file
         restoreDataFromFile();
 
+        if (shardNodes != null) {
+            if (self == null) {
+                self = "localhost:" + port;
+            }
+            shards = new ShardRouter(self, Arrays.asList(shardNodes.split(",")));
+            System.out.println("Sharded over " + shards.nodes());
+            // Stations restored from before a membership change may belong elsewhere now
+            new Thread(AggregationServer::rebalance).start();
+        }
+
+        // Start a thread to expire stations whose content server went quiet
+        new Thread(AggregationServer::cleanOldEntries).start();
+
+        // Start the threads that push changes to /events subscribers and to backups
+        subscriptions.start();
+        replicas.start();
+        if (replicaOf != null) {
+            follower = new ReplicationFollower(new ServerList(replicaOf, 4567), promoteAfterSeconds * 1000L,
+                    AggregationServer::applyReplicatedSnapshot, AggregationServer::applyReplicated,
+                    clock -> lamportClock.accumulateAndGet(clock, Math::max), AggregationServer::promote);
+            follower.start();
+            System.out.println("Running as a read-only backup of " + replicaOf);
+        }
+
+        // Start a thread to fold the log into the snapshot
+        new Thread(AggregationServer::compactLog).start();
+
+        // Only now is the restored state consistent, so only now are connections accepted
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        System.out.println("Server started on port " + port + " (" + engine + " engine) in "
+                + (System.nanoTime() - startedAt) / 1000000 + " ms");
+
+        registerGauges();
+        if (engine.equals("nio")) {
+            selectorServer = new SelectorServer(serverChannel, workerThreads, maxQueued, KEEP_ALIVE_TIMEOUT,
+                    MAX_REQUESTS_PER_CONNECTION, AggregationServer::handleRequest, AggregationServer::overloaded);
+            selectorServer.run();
+            return;
+        }
+
+        Executor connectionExecutor = createConnectionExecutor();
+        // A thread per connection is only cheap up to a point; past it, leave clients in the backlog
+        Semaphore connectionSlots = new Semaphore(engine.equals("thread") ? maxConnections : Integer.MAX_VALUE);
         while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleRequest(clientSocket)).start();
-        }
-    }
-
-    private static void handleRequest(Socket clientSocket) {
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))
-        ) {
-            String requestLine = in.readLine();
-            if (requestLine == null || requestLine.isEmpty()) {
-                clientSocket.close();
-                return;
-            }
-            String[] requestParts = requestLine.split(" ");
-            String method = requestParts[0];
-
-            // Read headers
-            Map<String, String> headers = new HashMap<>();
-            String line;
-            while (!(line = in.readLine()).isEmpty()) {
-                int idx = line.indexOf(": ");
-                if (idx > 0) {
-                    headers.put(line.substring(0, idx), line.substring(idx + 2));
-                }
+            connectionSlots.acquireUninterruptibly();
+            Socket clientSocket = serverChannel.accept().socket();
+            try {
+                connectionExecutor.execute(() -> {
+                    try {
+                        handleConnection(clientSocket);
+                    } finally {
+                        connectionSlots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                connectionSlots.release();
+                rejectConnection(clientSocket);
             }
+        }
+    }
+
+    // Answered in place of requests the engine had no room to queue
+    private static HttpResponse overloaded() {
+        admission.shed("queue_full");
+        return response("503 Service Unavailable", "").header("Retry-After", 1);
+    }
+
+    private static void rejectConnection(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            overloaded().connection(false, KEEP_ALIVE_TIMEOUT).writeTo(socket.getOutputStream());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Values kept elsewhere, read when /metrics is scraped
+    private static void registerGauges() {
+        metrics.gauge("weather_connections_open", "Client connections currently open.",
+                () -> selectorServer != null ? selectorServer.getOpenConnections() : connectionsOpen.sum());
+        metrics.counterFunction("weather_connections_accepted_total", "Client connections accepted.",
+                () -> selectorServer != null ? selectorServer.getAcceptedConnections() : connectionsAccepted.sum());
+        metrics.gauge("weather_stations", "Stations currently stored.", store::size);
+        metrics.gauge("weather_content_servers", "Content servers heard from within the expiry timeout.",
+                contentServersLastContact::size);
+        metrics.gauge("weather_lamport_clock", "Current Lamport clock.", lamportClock::get);
+        metrics.gauge("weather_event_subscribers", "Open GET /events streams.", () -> subscriptions.size());
+        metrics.gauge("weather_replicas", "Backups following this server.", () -> replicas.size());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        metrics.gauge("weather_threads", "Live JVM threads.", threads::getThreadCount);
+        metrics.counterFunction("weather_threads_started_total", "JVM threads started, including finished ones.",
+                threads::getTotalStartedThreadCount);
+    }
+
+    private static Executor createConnectionExecutor() {
+        switch (engine) {
+            case "thread":
+                return task -> new Thread(task).start();
+            case "pool":
+                return createConnectionPool();
+            case "virtual":
+                // Looked up reflectively so the server still builds and runs on Java 17
+                try {
+                    return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("Virtual threads need Java 21, falling back to the pool engine");
+                    return createConnectionPool();
+                }
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    // Connections beyond maxQueued waiting for a thread are turned away
+    private static ThreadPoolExecutor createConnectionPool() {
+        connectionPool = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)));
+        return connectionPool;
+    }
 
-            // Update Lamport clock
-            int receivedLamport = Integer.parseInt(headers.getOrDefault("Lamport-Clock", "0"));
-            synchronized (lock) {
-                lamportClock = Math.max(lamportClock, receivedLamport) + 1;
+    private static void handleConnection(Socket clientSocket) {
+        connectionsOpen.increment();
+        connectionsAccepted.increment();
+        boolean handedOff = false;
+        try {
+            Socket socket = clientSocket;
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            // Buffered so head and body leave in one segment instead of waiting on delayed ACKs
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            int idleTimeout = connectionPool != null ? POOL_KEEP_ALIVE_TIMEOUT : KEEP_ALIVE_TIMEOUT;
+            socket.setSoTimeout(idleTimeout);
+            String clientAddress = socket.getInetAddress().getHostAddress();
+
+            // Serve requests until the client closes, goes idle or reaches the per-connection cap.
+            // Pipelined requests are simply read one after another from the buffered stream.
+            for (int served = 1; ; served++) {
+                HttpRequest request;
+                try {
+                    request = HttpRequest.read(in, clientAddress);
+                } catch (SocketTimeoutException e) {
+                    return;
+                }
+                if (request == null) {
+                    return;
+                }
+                HttpResponse response = handleRequest(request);
+                // On the pool engine, a connection gives up its thread as soon as others are waiting for one
+                boolean keepAlive = request.wantsKeepAlive() && served < MAX_REQUESTS_PER_CONNECTION
+                        && (connectionPool == null || connectionPool.getQueue().isEmpty());
+                if (response.getStream() != null) {
+                    if (connectionPool != null) {
+                        // A pool thread is too scarce to give a subscriber for good; the stream gets its own
+                        startStreamThread(socket, response.connection(false, idleTimeout), out);
+                        handedOff = true;
+                    } else {
+                        streamEvents(response.connection(false, idleTimeout), out);
+                    }
+                    return;
+                }
+                response.connection(keepAlive, idleTimeout).writeTo(out);
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (!handedOff) {
+                closeConnection(clientSocket);
             }
+        }
+    }
 
-            if (method.equals("GET")) {
-                handleGETRequest(out);
-            } else if (method.equals("PUT")) {
-                handlePUTRequest(in, out, headers, clientSocket.getInetAddress().getHostAddress());
-            } else {
-                sendResponse(out, "400 Bad Request", "");
+    private static void startStreamThread(Socket socket, HttpResponse response, OutputStream out) {
+        Thread thread = new Thread(() -> {
+            try {
+                streamEvents(response, out);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                closeConnection(socket);
             }
+        }, "event-stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeConnection(Socket socket) {
+        try {
+            socket.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            connectionsOpen.decrement();
         }
     }
 
-    private static void handleGETRequest(BufferedWriter out) throws IOException {
-        String jsonData;
-        synchronized (lock) {
-            jsonData = getWeatherDataAsJSON();
+    // The blocking engines give a streaming response a thread for good: its connection's, or on the
+    // pool engine one of its own
+    private static void streamEvents(HttpResponse response, OutputStream out) throws IOException {
+        BlockingEventSink sink = new BlockingEventSink();
+        response.getStream().accept(sink);
+        try {
+            response.writeTo(out);
+            byte[] data;
+            while ((data = sink.take()) != null) {
+                out.write(data);
+                if (sink.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } finally {
+            sink.close();
         }
+    }
 
-        // Send Lamport clock in response header
-        String responseHeaders = "HTTP/1.1 200 OK\r\n" +
-                "Content-Type: application/json\r\n" +
-                "Content-Length: " + jsonData.length() + "\r\n" +
-                "Lamport-Clock: " + lamportClock + "\r\n" +
-                "\r\n";
+    // Event queue drained by a connection thread; a client that falls too far behind is dropped
+    private static final class BlockingEventSink implements EventSink {
+        private static final long MAX_PENDING = 4 * 1024 * 1024;
+        private static final byte[] CLOSED = new byte[0];
+        private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private volatile boolean closed;
+
+        @Override
+        public boolean send(byte[] data) {
+            if (closed) {
+                return false;
+            }
+            if (pendingBytes.addAndGet(data.length) > MAX_PENDING) {
+                close();
+                return false;
+            }
+            pending.add(data);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            pending.add(CLOSED);
+        }
+
+        boolean isEmpty() {
+            return pending.isEmpty();
+        }
 
-        out.write(responseHeaders);
-        out.write(jsonData);
-        out.flush();
+        // Next event to write, or null once the sink is closed
+        byte[] take() throws IOException {
+            try {
+                byte[] data = pending.take();
+                if (data == CLOSED) {
+                    return null;
+                }
+                pendingBytes.addAndGet(-data.length);
+                return data;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
     }
 
-    private static void handlePUTRequest(BufferedReader in, BufferedWriter out, Map<String, String> headers, String clientAddress) {
+    private static HttpResponse handleRequest(HttpRequest request) {
+        long start = System.nanoTime();
+        // Other shards' requests were admitted where they arrived; monitoring must get through overload
+        boolean admitted = !fromShard(request) && !request.getPath().equals("/metrics");
+        HttpResponse response;
         try {
-            int contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
-            if (contentLength == 0) {
-                sendResponse(out, "204 No Content", "");
-                return;
+            long retryAfter = admitted ? admission.admit(request.clientAddress, request.receivedAt) : 0;
+            if (retryAfter > 0) {
+                admitted = false;
+                response = response("503 Service Unavailable", "").header("Retry-After", retryAfter);
+            } else {
+                response = routeRequest(request);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+            response = response("503 Service Unavailable", "").header("Retry-After", 1);
+        } finally {
+            if (admitted) {
+                admission.release();
+            }
+        }
+        // Label values come from fixed sets, so a client cannot create new series
+        String method = request.method.equals("GET") || request.method.equals("PUT") ? request.method : "other";
+        String path = metricPaths.contains(request.getPath()) ? request.getPath() : "other";
+        requestDuration.record(System.nanoTime() - start, method, path);
+        requestsTotal.inc(method, path, response.status.substring(0, Math.min(3, response.status.length())));
+        leaseClock();
+        return response;
+    }
 
-            char[] bodyChars = new char[contentLength];
-            int read = in.read(bodyChars);
-            if (read != contentLength) {
-                sendResponse(out, "400 Bad Request", "");
-                return;
+    /**
+     * Makes sure the current clock is covered by a durable lease before it is sent. Half a lease
+     * before it runs out the next one is logged without waiting, so only a clock that jumps past
+     * it, such as one received from a client, waits for the log.
+     */
+    private static void leaseClock() {
+        long clock = lamportClock.get();
+        if (clock <= leasedClock - CLOCK_LEASE / 2 && clock <= durableLease.get()) {
+            return;
+        }
+        CompletableFuture<Void> commit;
+        synchronized (clockLeaseLock) {
+            if (clock > leasedClock - CLOCK_LEASE / 2) {
+                long lease = clock + CLOCK_LEASE;
+                leasedClock = lease;
+                leaseCommit = wal.logClockLease(lease).thenRun(() -> durableLease.accumulateAndGet(lease, Math::max));
             }
-            String body = new String(bodyChars);
+            commit = leaseCommit;
+        }
+        if (clock > durableLease.get()) {
+            try {
+                WriteAheadLog.await(commit);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            // Parse JSON data
-            Map<String, String> weatherData = parseJSON(body);
-            if (weatherData == null) {
-                sendResponse(out, "500 Internal Server Error", "");
-                return;
+    private static HttpResponse routeRequest(HttpRequest request) {
+        // Update Lamport clock; a received clock can jump past the lease, so renew it before changes are made at it
+        long receivedLamport;
+        try {
+            receivedLamport = Long.parseLong(request.headers.getOrDefault("Lamport-Clock", "0").trim());
+        } catch (NumberFormatException e) {
+            return response("400 Bad Request", "");
+        }
+        lamportClock.updateAndGet(clock -> Math.max(clock, receivedLamport) + 1);
+        leaseClock();
+
+        if (shards != null && !fromShard(request)) {
+            HttpResponse routed = routeToShards(request);
+            if (routed != null) {
+                return routed;
             }
+        }
+        if (request.method.equals("GET")) {
+            return handleGETRequest(request);
+        } else if (request.method.equals("PUT")) {
+            return handlePUTRequest(request);
+        } else {
+            return response("400 Bad Request", "");
+        }
+    }
 
-            // Store weather data
-            synchronized (lock) {
-                storeWeatherData(weatherData, clientAddress);
-                lamportClock++;
+    /**
+     * Handles a request that involves other shards: writes go to the owning shard, whole-feed and
+     * state or bbox GETs are gathered from every shard, and id lookups go to the owner only.
+     * Returns null for requests this node serves from its own stations, such as /events.
+     */
+    private static HttpResponse routeToShards(HttpRequest request) {
+        String path = request.getPath();
+        if (request.method.equals("PUT")) {
+            if (path.equals("/heartbeat")) {
+                // Any shard may hold some of this content server's stations
+                gather(request, "PUT", request.target, request.body, false);
+                return null;
+            }
+            if (path.equals("/promote") || path.equals("/ring") || request.getContentLength() == 0 || request.body.length != request.getContentLength()) {
+                return null;
             }
+            return routePUT(request);
+        }
+        if (!request.method.equals("GET")) {
+            return null;
+        }
+        String id = request.getQueryParameter("id");
+        if (id != null && !path.equals("/events") && !path.equals("/replication")) {
+            String owner = shards.owner(id);
+            return shards.isSelf(owner) ? null : forward(owner, request, "GET", request.target, new byte[0]);
+        }
+        if (path.equals("/history") || path.equals("/events") || path.equals("/replication") || path.equals("/stats")
+                || path.equals("/metrics")
+                || request.headers.containsKey("Since-Lamport") || request.getQueryParameter("since") != null) {
+            return null; // served from this node's own stations
+        }
+        return gather(request, "GET", request.target, new byte[0], true);
+    }
 
-            // Update last contact time
-            contentServersLastContact.put(clientAddress, System.currentTimeMillis());
+    // Splits a PUT by owning shard; this node's part is applied here and the rest forwarded in parallel
+    private static HttpResponse routePUT(HttpRequest request) {
+        List<StationRecord> batch = parseUpload(request);
+        if (batch == null || batch.contains(null)) {
+            return response("500 Internal Server Error", "");
+        }
+        Map<String, List<StationRecord>> byOwner = new LinkedHashMap<>();
+        for (StationRecord data : batch) {
+            byOwner.computeIfAbsent(shards.owner(data.getId()), node -> new ArrayList<>()).add(data);
+        }
+        if (byOwner.size() == 1 && shards.isSelf(byOwner.keySet().iterator().next())) {
+            return null;
+        }
 
-            sendResponse(out, "200 OK", "");
+        Map<String, CompletableFuture<HttpResponse>> forwarded = new LinkedHashMap<>();
+        Map<String, String> headers = forwardHeaders(request);
+        headers.put("Content-Type", "application/json"); // parts go on as JSON whatever the upload's format
+        for (Map.Entry<String, List<StationRecord>> part : byOwner.entrySet()) {
+            if (!shards.isSelf(part.getKey())) {
+                forwarded.putAll(shards.sendAll(Collections.singletonList(part.getKey()), "PUT", "/weather.json",
+                        headers, toJSONArray(part.getValue()).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        HttpResponse result = response("200 OK", "");
+        List<StationRecord> local = byOwner.get(self);
+        if (local != null) {
+            try {
+                result = storeBatch(local, request.clientAddress);
+            } catch (IOException e) {
+                e.printStackTrace();
+                result = response("500 Internal Server Error", "");
+            }
+        }
+        // Each shard commits its own part; the first failure is reported
+        for (Map.Entry<String, CompletableFuture<HttpResponse>> part : forwarded.entrySet()) {
+            HttpResponse response = ShardRouter.await(part.getKey(), part.getValue());
+            if (response == null) {
+                response = new HttpResponse("502 Bad Gateway", "");
+            }
+            reconcileClock(response);
+            if (result.status.startsWith("200") && !response.status.startsWith("200")) {
+                result = response(response.status, "");
+            }
+        }
+        return result.header("Lamport-Clock", lamportClock.get());
+    }
 
+    // Sends a request on to the node that owns it and relays the answer
+    private static HttpResponse forward(String node, HttpRequest request, String method, String target, byte[] body) {
+        try {
+            HttpResponse response = shards.send(node, method, target, forwardHeaders(request), body);
+            reconcileClock(response);
+            return response(response.status, response.body);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Shard " + node + " failed: " + e);
+            return response("502 Bad Gateway", "");
+        }
+    }
+
+    /**
+     * Sends a request to every other shard in parallel. With merge set, the JSON arrays they
+     * return are joined with this node's own answer; a shard that fails is left out and named
+     * in a Missing-Shards header. Without merge the responses are only awaited.
+     */
+    private static HttpResponse gather(HttpRequest request, String method, String target, byte[] body, boolean merge) {
+        List<String> others = new ArrayList<>(shards.nodes());
+        others.removeIf(shards::isSelf);
+        Map<String, CompletableFuture<HttpResponse>> responses =
+                shards.sendAll(others, method, target, forwardHeaders(request), body);
+        if (!merge) {
+            responses.forEach((node, response) -> {
+                HttpResponse answer = ShardRouter.await(node, response);
+                if (answer != null) {
+                    reconcileClock(answer);
+                }
+            });
+            return null;
+        }
+
+        // This node's part is built while the other shards work on theirs
+        HttpResponse local = request.getQueryParameter("state") != null || request.getQueryParameter("bbox") != null
+                ? handleQueryRequest(request)
+                : response("200 OK", currentSnapshot().body);
+        if (!local.status.startsWith("200")) {
+            return local;
+        }
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(local.body);
+        List<String> missing = new ArrayList<>();
+        responses.forEach((node, response) -> {
+            HttpResponse answer = ShardRouter.await(node, response);
+            if (answer != null && answer.status.startsWith("200")) {
+                reconcileClock(answer);
+                parts.add(answer.body);
+            } else {
+                missing.add(node);
+            }
+        });
+        HttpResponse merged = response("200 OK", mergeArrays(parts));
+        return missing.isEmpty() ? merged : merged.header("Missing-Shards", String.join(",", missing));
+    }
+
+    private static Map<String, String> forwardHeaders(HttpRequest request) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Lamport-Clock", String.valueOf(lamportClock.get()));
+        headers.put("Forwarded-For", request.clientAddress);
+        String contentType = request.headers.get("Content-Type");
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+        return headers;
+    }
+
+    // A response from another shard moves this node's clock past that shard's
+    private static void reconcileClock(HttpResponse response) {
+        String clock = response.getHeader("Lamport-Clock");
+        if (clock != null) {
+            long shardClock = Long.parseLong(clock.trim());
+            lamportClock.updateAndGet(c -> Math.max(c, shardClock) + 1);
+        }
+    }
+
+    // Joins JSON arrays into one by copying their elements, without parsing them
+    private static byte[] mergeArrays(List<byte[]> arrays) {
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        merged.write('[');
+        boolean first = true;
+        for (byte[] array : arrays) {
+            int start = 0;
+            int end = array.length;
+            while (start < end && array[start] != '[') {
+                start++;
+            }
+            while (end > start && array[end - 1] != ']') {
+                end--;
+            }
+            start++;
+            end--;
+            while (start < end && Character.isWhitespace(array[start])) {
+                start++;
+            }
+            if (start >= end) {
+                continue; // empty array
+            }
+            if (!first) {
+                merged.write(',');
+            }
+            merged.write(array, start, end - start);
+            first = false;
+        }
+        merged.write(']');
+        return merged.toByteArray();
+    }
+
+    private static String toJSONArray(List<StationRecord> stations) {
+        StringBuilder sb = new StringBuilder();
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginArray();
+        for (StationRecord data : stations) {
+            data.writeTo(writer);
+        }
+        writer.endArray();
+        return sb.toString();
+    }
+
+    // PUT /ring with a body of host:port,host:port,... sets the shard membership on every node
+    // of the old and new rings, then each node hands the stations it no longer owns to their owners
+    private static HttpResponse handleRingChange(HttpRequest request) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : new String(request.body, StandardCharsets.UTF_8).split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        if (nodes.isEmpty()) {
+            return response("400 Bad Request", "");
+        }
+        if (!fromShard(request)) {
+            Set<String> affected = new LinkedHashSet<>(shards.nodes());
+            affected.addAll(nodes);
+            affected.removeIf(shards::isSelf);
+            shards.sendAll(affected, "PUT", "/ring", forwardHeaders(request), request.body)
+                    .forEach(ShardRouter::await);
+        }
+        changeRing(nodes);
+        return response("200 OK", "");
+    }
+
+    private static void changeRing(List<String> nodes) {
+        shards.setNodes(nodes);
+        System.out.println("Shard membership is now " + shards.nodes());
+        new Thread(AggregationServer::rebalance).start();
+    }
+
+    // Hands stations this node no longer owns to their owners, then drops them here
+    private static void rebalance() {
+        Map<String, List<StationRecord>> moving = new LinkedHashMap<>();
+        for (StationRecord data : store.values()) {
+            String owner = shards.owner(data.getId());
+            if (!shards.isSelf(owner)) {
+                moving.computeIfAbsent(owner, node -> new ArrayList<>()).add(data);
+            }
+        }
+        for (Map.Entry<String, List<StationRecord>> handoff : moving.entrySet()) {
             try {
-                sendResponse(out, "500 Internal Server Error", "");
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+                HttpResponse response = shards.send(handoff.getKey(), "PUT", "/handoff", new HashMap<>(),
+                        toJSONArray(handoff.getValue()).getBytes(StandardCharsets.UTF_8));
+                if (!response.status.startsWith("200")) {
+                    System.out.println("Handoff to " + handoff.getKey() + " failed: " + response.status);
+                    continue;
+                }
+                CompletableFuture<Void> commit = null;
+                for (StationRecord data : handoff.getValue()) {
+                    synchronized (stripe(data.getId())) {
+                        if (store.get(data.getId()) == data) {
+                            commit = removeStation(data);
+                        }
+                    }
+                }
+                if (commit != null) {
+                    WriteAheadLog.await(commit);
+                }
+                System.out.println("Handed " + handoff.getValue().size() + " stations to " + handoff.getKey());
+            } catch (IOException e) {
+                System.out.println("Handoff to " + handoff.getKey() + " failed: " + e);
             }
         }
     }
 
-    private static void sendResponse(BufferedWriter out, String status, String body) throws IOException {
-        String response = "HTTP/1.1 " + status + "\r\n" +
-                "Content-Type: application/json\r\n" +
-                "Content-Length: " + body.length() + "\r\n" +
-                "Lamport-Clock: " + lamportClock + "\r\n" +
-                "\r\n" +
-                body;
-        out.write(response);
-        out.flush();
+    // PUT /handoff from another shard: stations keep their content server, and one newer than
+    // the handoff, already PUT here under the new ring, is left alone
+    private static HttpResponse handleHandoff(HttpRequest request) {
+        List<StationRecord> stations = StationRecord.parseBatch(new String(request.body, StandardCharsets.UTF_8));
+        if (stations == null) {
+            return response("500 Internal Server Error", "");
+        }
+        CompletableFuture<Void> commit = null;
+        long now = System.currentTimeMillis();
+        for (StationRecord data : stations) {
+            synchronized (stripe(data.getId())) {
+                if (store.get(data.getId()) != null) {
+                    continue;
+                }
+                commit = storeWeatherData(data, data.getClientAddress());
+                if (data.getClientAddress() != null) {
+                    contentServersLastContact.putIfAbsent(data.getClientAddress(), now);
+                    expiry.touch(data.getClientAddress(), now + TIMEOUT);
+                }
+            }
+        }
+        try {
+            if (commit != null) {
+                WriteAheadLog.await(commit);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return response("500 Internal Server Error", "");
+        }
+        return response("200 OK", "");
     }
 
-    private static void storeWeatherData(Map<String, String> weatherData, String clientAddress) throws IOException {
-        // Read existing data
-        List<Map<String, String>> dataList = loadDataList();
+    private static HttpResponse handleGETRequest(HttpRequest request) {
+        if (request.getPath().equals("/history")) {
+            return handleHistoryRequest(request);
+        }
+        if (request.getPath().equals("/events")) {
+            return handleSubscribe(request, subscriptions);
+        }
+        if (request.getPath().equals("/replication")) {
+            // Backups only follow a primary, so a chain of them cannot form
+            return follower != null ? readOnly() : handleSubscribe(request, replicas);
+        }
+        if (request.getPath().equals("/stats")) {
+            return response("200 OK", stats.toJSON(System.currentTimeMillis()));
+        }
+        if (request.getPath().equals("/metrics")) {
+            return response("200 OK", metrics.scrape()).header("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        }
+        if (request.getQueryParameter("id") != null || request.getQueryParameter("state") != null
+                || request.getQueryParameter("bbox") != null) {
+            return handleQueryRequest(request);
+        }
+        if (request.headers.containsKey("Since-Lamport") || request.getQueryParameter("since") != null) {
+            return handleDeltaRequest(request);
+        }
 
-        // Remove existing data from the same content server
-        dataList.removeIf(data -> clientAddress.equals(data.get("clientAddress")));
+        // Served from the cached encoding of the in-memory store, so readers never wait for file I/O
+        CachedSnapshot snapshot = currentSnapshot();
+        String encoding = negotiateEncoding(request.headers.get("Accept-Encoding"));
+        byte[] body = encoding == null ? snapshot.body : snapshot.compressed(encoding);
+        if (body.length >= snapshot.body.length) {
+            encoding = null; // too small to gain anything
+            body = snapshot.body;
+        }
+        String etag = snapshot.etag(encoding);
+        if (etag.equals(request.headers.get("If-None-Match"))) {
+            return response("304 Not Modified", "").header("ETag", etag).header("Vary", "Accept-Encoding");
+        }
 
-        // Add new data
-        weatherData.put("clientAddress", clientAddress);
-        dataList.add(weatherData);
+        // Send Lamport clock in response header
+        HttpResponse response = response("200 OK", body).header("ETag", etag).header("Vary", "Accept-Encoding");
+        return encoding == null ? response : response.header("Content-Encoding", encoding);
+    }
 
-        // Save data back to file
-        saveDataList(dataList);
+    // Picks gzip or deflate from an Accept-Encoding header, or null for an uncompressed body
+    static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String best = null;
+        double bestQuality = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            if (coding.equals("*")) {
+                coding = "gzip";
+            }
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            // gzip wins a tie, being the more widely supported of the two
+            if ((coding.equals("gzip") || coding.equals("deflate"))
+                    && (quality > bestQuality || (quality == bestQuality && coding.equals("gzip")))) {
+                best = quality > 0 ? coding : best;
+                bestQuality = quality;
+            }
+        }
+        return best;
     }
 
-    private static List<Map<String, String>> loadDataList() {
-        List<Map<String, String>> dataList = new ArrayList<>();
-        File file = new File(filePath);
-        if (!file.exists()) {
-            return dataList;
+    private static byte[] compress(byte[] data, boolean gzip) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream out = gzip ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen writing to memory
         }
+        return bytes.toByteArray();
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                Map<String, String> data = parseJSON(line);
+    /**
+     * GET with a Since-Lamport header (or ?since=) and the Change-Log-Epoch of an earlier response
+     * (or ?epoch=). Answers {"epoch", "lamport", "full", "upserts", "deletes"}: the latest version
+     * of every station changed after that clock and the ids of stations that expired. If the
+     * change log no longer reaches back that far, or the epoch belongs to an earlier run of the
+     * server, "full" is true and upserts hold every station instead.
+     */
+    private static HttpResponse handleDeltaRequest(HttpRequest request) {
+        String sinceValue = request.headers.get("Since-Lamport");
+        if (sinceValue == null) {
+            sinceValue = request.getQueryParameter("since");
+        }
+        String epoch = request.headers.get("Change-Log-Epoch");
+        if (epoch == null) {
+            epoch = request.getQueryParameter("epoch");
+        }
+        long since;
+        try {
+            since = Long.parseLong(sinceValue.trim());
+        } catch (NumberFormatException e) {
+            return response("400 Bad Request", "");
+        }
+
+        ChangeLog.Delta delta = etagPrefix.equals(epoch) ? changes.since(since) : null;
+        StringBuilder sb = new StringBuilder();
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginObject();
+        writer.name("epoch").value(etagPrefix);
+        if (delta != null) {
+            writer.name("lamport").value(delta.clock).name("full").value(false);
+            writer.name("upserts").beginArray();
+            for (StationRecord data : delta.changes.values()) {
                 if (data != null) {
-                    dataList.add(data);
+                    data.writeTo(writer);
                 }
             }
+            writer.endArray().name("deletes").beginArray();
+            for (Map.Entry<String, StationRecord> change : delta.changes.entrySet()) {
+                if (change.getValue() == null) {
+                    writer.value(change.getKey());
+                }
+            }
+            writer.endArray();
+        } else {
+            // Every change up to this clock is already in the store, so the client can continue from it
+            long clock = changes.head();
+            writer.name("lamport").value(clock).name("full").value(true);
+            writer.name("upserts").beginArray();
+            for (StationRecord data : store.values()) {
+                data.writeTo(writer);
+            }
+            writer.endArray().name("deletes").beginArray().endArray();
+        }
+        writer.endObject();
+        return response("200 OK", sb.toString()).header("Change-Log-Epoch", etagPrefix);
+    }
+
+    // GET /events: a Server-Sent Events stream of station changes, and GET /replication: the
+    // same for backups, but with every change log entry in order. A reconnecting client sends
+    // Last-Event-ID and gets only what it missed if the change log still covers it.
+    private static HttpResponse handleSubscribe(HttpRequest request, SubscriptionHub hub) {
+        // Registered first, so nothing committed after the initial state is read can be missed
+        SubscriptionHub.Subscriber subscriber = hub.subscribe();
+        long lastEventClock = hub.parseEventId(request.headers.get("Last-Event-ID"));
+        StringBuilder initial = null;
+        if (lastEventClock >= 0 && hub.isOrdered()) {
+            List<ChangeLog.Entry> entries = changes.entriesSince(lastEventClock);
+            if (entries != null) {
+                subscriber.coveredUpTo(entries.isEmpty() ? lastEventClock : entries.get(entries.size() - 1).clock);
+                initial = hub.encode(entries);
+            }
+        } else if (lastEventClock >= 0) {
+            ChangeLog.Delta delta = changes.since(lastEventClock);
+            if (delta != null) {
+                subscriber.coveredUpTo(delta.clock);
+                initial = delta.changes.isEmpty() ? new StringBuilder() : hub.encode(delta);
+            }
+        }
+        if (initial == null) {
+            long clock = changes.head();
+            subscriber.coveredUpTo(clock);
+            initial = hub.encodeSnapshot(store.values(), clock);
+        }
+        return response("200 OK", initial.toString())
+                .header("Content-Type", "text/event-stream")
+                .header("Cache-Control", "no-cache")
+                .stream(subscriber);
+    }
+
+    // GET /weather.json?id=<station>&state=<state>&bbox=<minLat>,<minLon>,<maxLat>,<maxLon>
+    private static HttpResponse handleQueryRequest(HttpRequest request) {
+        double[] bbox = null;
+        String bboxParameter = request.getQueryParameter("bbox");
+        if (bboxParameter != null) {
+            String[] parts = bboxParameter.split(",");
+            if (parts.length != 4) {
+                return response("400 Bad Request", "");
+            }
+            bbox = new double[4];
+            try {
+                for (int i = 0; i < 4; i++) {
+                    bbox[i] = Double.parseDouble(parts[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                return response("400 Bad Request", "");
+            }
+        }
+
+        List<StationRecord> matches = store.query(request.getQueryParameter("id"), request.getQueryParameter("state"), bbox);
+        StringBuilder sb = new StringBuilder();
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginArray();
+        for (StationRecord data : matches) {
+            data.writeTo(writer);
+        }
+        writer.endArray();
+        return response("200 OK", sb.toString());
+    }
+
+    // GET /history?id=<station>&since=<local_date_time_full>
+    private static HttpResponse handleHistoryRequest(HttpRequest request) {
+        String id = request.getQueryParameter("id");
+        String sinceParameter = request.getQueryParameter("since");
+        if (id == null || id.isEmpty()) {
+            return response("400 Bad Request", "");
+        }
+        long since = Long.MIN_VALUE;
+        if (sinceParameter != null) {
+            try {
+                since = Long.parseLong(sinceParameter);
+            } catch (NumberFormatException e) {
+                return response("400 Bad Request", "");
+            }
+        }
+        String samples = history.query(id, since);
+        if (samples == null) {
+            return response("404 Not Found", "");
+        }
+        return response("200 OK", samples);
+    }
+
+    private static CachedSnapshot currentSnapshot() {
+        CachedSnapshot snapshot = cachedSnapshot;
+        if (snapshot.version == dataVersion.get()) {
+            return snapshot;
+        }
+        synchronized (CachedSnapshot.class) {
+            // Read the version before encoding, so the snapshot holds at least that version's data
+            long version = dataVersion.get();
+            snapshot = cachedSnapshot;
+            if (snapshot.version >= version) {
+                return snapshot;
+            }
+            snapshot = new CachedSnapshot(version, encodeConsistently().getBytes(StandardCharsets.UTF_8));
+            cachedSnapshot = snapshot;
+            return snapshot;
+        }
+    }
+
+    // Encodes the store without a half-applied batch in it, unless batches keep overlapping
+    private static String encodeConsistently() {
+        for (int attempt = 0; ; attempt++) {
+            long applied = batchesApplied.get();
+            if (batchesInProgress.get() > 0 && attempt < 100) {
+                Thread.yield();
+                continue;
+            }
+            String json = getWeatherDataAsJSON();
+            if (attempt >= 100 || (batchesInProgress.get() == 0 && batchesApplied.get() == applied)) {
+                return json;
+            }
+        }
+    }
+
+    private static HttpResponse handlePUTRequest(HttpRequest request) {
+        // Only another shard may name the content server behind a request or hand off stations
+        if (!fromShard(request) && (request.headers.containsKey("Forwarded-For") || request.getPath().equals("/handoff"))) {
+            return response("403 Forbidden", "");
+        }
+        if (request.getPath().equals("/promote")) {
+            promote();
+            return response("200 OK", "");
+        }
+        if (follower != null) {
+            return readOnly();
+        }
+        if (request.getPath().equals("/heartbeat")) {
+            return handleHeartbeat(request);
+        }
+        if (request.getPath().equals("/ring") && shards != null) {
+            return handleRingChange(request);
+        }
+        if (request.getPath().equals("/handoff")) {
+            return handleHandoff(request);
+        }
+        try {
+            int contentLength = request.getContentLength();
+            if (contentLength == 0) {
+                return response("204 No Content", "");
+            }
+
+            if (request.body.length != contentLength) {
+                return response("400 Bad Request", "");
+            }
+            String clientAddress = clientAddress(request);
+            if (isBinary(request)) {
+                // Decoded straight from the body bytes, one observation or a batch
+                List<StationRecord> batch = StationRecord.parseBinary(ByteBuffer.wrap(request.body));
+                if (batch == null) {
+                    return response("500 Internal Server Error", "");
+                }
+                if (batch.isEmpty()) {
+                    return response("204 No Content", "");
+                }
+                return batch.size() == 1 ? storeOne(batch.get(0), clientAddress) : storeBatch(batch, clientAddress);
+            }
+            String body = new String(request.body, StandardCharsets.UTF_8);
+            if (isBatch(request, body)) {
+                return handleBatchPUT(body, clientAddress);
+            }
+
+            // Parse JSON data
+            StationRecord weatherData = parseJSON(body);
+            if (weatherData == null) {
+                return response("500 Internal Server Error", "");
+            }
+            return storeOne(weatherData, clientAddress);
+
         } catch (IOException e) {
             e.printStackTrace();
+            return response("500 Internal Server Error", "");
+        }
+    }
+
+    private static HttpResponse storeOne(StationRecord weatherData, String clientAddress) throws IOException {
+        // Store weather data, then wait for the log to make it durable outside the lock
+        CompletableFuture<Void> commit;
+        long lockRequested = System.nanoTime();
+        long lockAcquired;
+        synchronized (stripe(weatherData.getId())) {
+            lockAcquired = System.nanoTime();
+            commit = storeWeatherData(weatherData, clientAddress);
+
+            // Update last contact time and push back this server's expiry deadline
+            long now = System.currentTimeMillis();
+            contentServersLastContact.put(clientAddress, now);
+            expiry.touch(clientAddress, now + TIMEOUT);
+        }
+        lockHold.record(System.nanoTime() - lockAcquired, "put");
+        lockWait.record(lockAcquired - lockRequested, "put");
+        WriteAheadLog.await(commit);
+
+        return response("200 OK", "");
+    }
+
+    // PUT /heartbeat: keeps this content server's stations alive without re-sending them
+    private static HttpResponse handleHeartbeat(HttpRequest request) {
+        long now = System.currentTimeMillis();
+        String clientAddress = clientAddress(request);
+        contentServersLastContact.put(clientAddress, now);
+        expiry.touch(clientAddress, now + TIMEOUT);
+        // Not awaited: losing the last heartbeats in a crash only shortens the grace after restart
+        wal.logHeartbeat(clientAddress, lamportClock.get());
+        return response("200 OK", "");
+    }
+
+    // The content server behind a request; another shard passing one on names it in Forwarded-For
+    private static String clientAddress(HttpRequest request) {
+        String forwardedFor = request.headers.get("Forwarded-For");
+        return forwardedFor != null && fromShard(request) ? forwardedFor : request.clientAddress;
+    }
+
+    // A request another node of this server's ring sent; the Shard-Internal header alone proves nothing
+    private static boolean fromShard(HttpRequest request) {
+        return shards != null && shards.isFromPeer(request);
+    }
+
+    private static boolean isBinary(HttpRequest request) {
+        return request.headers.getOrDefault("Content-Type", "").startsWith(BinaryCodec.CONTENT_TYPE);
+    }
+
+    // The observations of a PUT body in any accepted format; null if it is malformed
+    private static List<StationRecord> parseUpload(HttpRequest request) {
+        if (isBinary(request)) {
+            return StationRecord.parseBinary(ByteBuffer.wrap(request.body));
         }
+        String body = new String(request.body, StandardCharsets.UTF_8);
+        return isBatch(request, body) ? StationRecord.parseBatch(body) : Collections.singletonList(parseJSON(body));
+    }
+
+    // A JSON array of observations, or NDJSON announced by its content type
+    private static boolean isBatch(HttpRequest request, String body) {
+        String contentType = request.headers.getOrDefault("Content-Type", "");
+        return contentType.startsWith("application/x-ndjson") || body.trim().startsWith("[");
+    }
 
-        return dataList;
+    // Validates the whole batch first, then applies it with one clock tick and one log record
+    private static HttpResponse handleBatchPUT(String body, String clientAddress) throws IOException {
+        List<StationRecord> batch = StationRecord.parseBatch(body);
+        if (batch == null) {
+            return response("500 Internal Server Error", "");
+        }
+        if (batch.isEmpty()) {
+            return response("204 No Content", "");
+        }
+        return storeBatch(batch, clientAddress);
     }
 
-    private static void saveDataList(List<Map<String, String>> dataList) throws IOException {
-        File tempFile = new File(filePath + ".tmp");
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile))) {
-            for (Map<String, String> data : dataList) {
-                String jsonString = buildJSONString(data);
-                bw.write(jsonString);
-                bw.newLine();
+    private static HttpResponse storeBatch(List<StationRecord> batch, String clientAddress) throws IOException {
+        // Lock every stripe the batch touches, in index order so concurrent batches cannot deadlock
+        int[] stripeIndexes = batch.stream().mapToInt(data -> stripeIndex(data.getId())).distinct().sorted().toArray();
+        CompletableFuture<Void> commit = storeBatchLocked(batch, clientAddress, stripeIndexes, 0, System.nanoTime());
+        WriteAheadLog.await(commit);
+
+        return response("200 OK", "");
+    }
+
+    private static CompletableFuture<Void> storeBatchLocked(List<StationRecord> batch, String clientAddress,
+            int[] stripeIndexes, int next, long lockRequested) {
+        if (next < stripeIndexes.length) {
+            synchronized (stripes[stripeIndexes[next]]) {
+                return storeBatchLocked(batch, clientAddress, stripeIndexes, next + 1, lockRequested);
             }
         }
+        long lockAcquired = System.nanoTime();
+        lockWait.record(lockAcquired - lockRequested, "batch");
+        try {
+            return applyBatch(batch, clientAddress);
+        } finally {
+            lockHold.record(System.nanoTime() - lockAcquired, "batch");
+        }
+    }
 
-        // Atomically replace the old file with the new file
-        Path source = tempFile.toPath();
-        Path target = new File(filePath).toPath();
-        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // Must be called while holding every stripe the batch touches
+    private static CompletableFuture<Void> applyBatch(List<StationRecord> batch, String clientAddress) {
+        List<String> jsons = new ArrayList<>(batch.size());
+        long now = System.currentTimeMillis();
+        batchesInProgress.incrementAndGet();
+        try {
+            for (StationRecord weatherData : batch) {
+                weatherData.setClientAddress(clientAddress);
+                StationRecord previous = store.put(weatherData);
+                stats.replace(previous, weatherData, now, true);
+                history.record(weatherData);
+                jsons.add(buildJSONString(weatherData));
+            }
+        } finally {
+            batchesApplied.incrementAndGet();
+            batchesInProgress.decrementAndGet();
+        }
+        dataVersion.incrementAndGet();
+        long clock = changes.appendAll(batch, lamportClock);
+        contentServersLastContact.put(clientAddress, now);
+        expiry.touch(clientAddress, now + TIMEOUT);
+        return wal.logBatch(jsons, clock);
     }
 
-    private static String getWeatherDataAsJSON() {
-        List<Map<String, String>> dataList = loadDataList();
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        for (int i = 0; i < dataList.size(); i++) {
-            String jsonString = buildJSONString(dataList.get(i));
-            sb.append(jsonString);
-            if (i < dataList.size() - 1) {
-                sb.append(",");
+    // Backups refuse writes; clients move on to the next server in their list
+    private static HttpResponse readOnly() {
+        return response("503 Service Unavailable", "").header("Replica-Of", replicaOf);
+    }
+
+    // Applies a change shipped by the primary; the record keeps the primary's clientAddress.
+    // Not awaited: a backup that loses its tail of the log simply catches up again on restart
+    private static void applyReplicated(String id, StationRecord record) {
+        synchronized (stripe(id)) {
+            if (record != null) {
+                storeWeatherData(record, record.getClientAddress());
+            } else {
+                StationRecord data = store.get(id);
+                if (data != null) {
+                    removeStation(data);
+                }
             }
         }
-        sb.append("]");
-        return sb.toString();
     }
 
-    private static Map<String, String> parseJSON(String jsonString) {
-        Map<String, String> dataMap = new HashMap<>();
-        jsonString = jsonString.trim();
-        if (jsonString.startsWith("{") && jsonString.endsWith("}")) {
-            jsonString = jsonString.substring(1, jsonString.length() - 1);
-            String[] fields = jsonString.split(",");
-            for (String field : fields) {
-                String[] keyValue = field.split(":", 2);
-                if (keyValue.length == 2) {
-                    String key = keyValue[0].trim().replace("\"", "");
-                    String value = keyValue[1].trim().replace("\"", "");
-                    dataMap.put(key, value);
+    // Replaces the backup's stations with the primary's
+    private static void applyReplicatedSnapshot(List<StationRecord> stations) {
+        Set<String> ids = new HashSet<>();
+        for (StationRecord data : stations) {
+            ids.add(data.getId());
+        }
+        for (StationRecord data : store.values()) {
+            if (!ids.contains(data.getId())) {
+                applyReplicated(data.getId(), null);
+            }
+        }
+        for (StationRecord data : stations) {
+            applyReplicated(data.getId(), data);
+        }
+        System.out.println("Replicated snapshot of " + stations.size() + " stations");
+    }
+
+    // Turns a backup into a primary; its content servers get one timeout to find it
+    private static synchronized void promote() {
+        ReplicationFollower current = follower;
+        if (current == null) {
+            return;
+        }
+        current.stop();
+        long now = System.currentTimeMillis();
+        for (StationRecord data : store.values()) {
+            if (data.getClientAddress() != null) {
+                contentServersLastContact.put(data.getClientAddress(), now);
+                expiry.touch(data.getClientAddress(), now + TIMEOUT);
+            }
+        }
+        follower = null;
+        System.out.println("Promoted to primary");
+    }
+
+    private static HttpResponse response(String status, String body) {
+        return response(status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpResponse response(String status, byte[] body) {
+        return new HttpResponse(status, body)
+                .header("Content-Type", "application/json")
+                .header("Lamport-Clock", lamportClock.get());
+    }
+
+    private static Object stripe(String stationId) {
+        return stripes[stripeIndex(stationId)];
+    }
+
+    private static int stripeIndex(String stationId) {
+        return (stationId.hashCode() & 0x7fffffff) % stripes.length;
+    }
+
+    // Must be called while holding the station's stripe, which fixes the order of its log records
+    private static CompletableFuture<Void> storeWeatherData(StationRecord weatherData, String clientAddress) {
+        // Replace the previous observation for this station id
+        weatherData.setClientAddress(clientAddress);
+        StationRecord previous = store.put(weatherData);
+        stats.replace(previous, weatherData, System.currentTimeMillis(), true);
+        history.record(weatherData);
+        dataVersion.incrementAndGet();
+        // Ticks the Lamport clock; logged after the store is updated, so a delta never runs ahead of it
+        long clock = changes.append(weatherData.getId(), weatherData, lamportClock);
+
+        // Append to the log instead of rewriting the whole file
+        return wal.logPut(buildJSONString(weatherData), clock);
+    }
+
+    // Must be called while holding the station's stripe
+    private static CompletableFuture<Void> removeStation(StationRecord data) {
+        store.remove(data.getId());
+        stats.remove(data);
+        dataVersion.incrementAndGet();
+        long clock = changes.append(data.getId(), null, lamportClock);
+        history.remove(data.getId());
+        return wal.logDelete(data.getId(), clock);
+    }
+
+    private static void compactLog() {
+        while (true) {
+            try {
+                Thread.sleep(COMPACTION_INTERVAL);
+                if (wal.getRecordsSinceCompaction() == 0) {
+                    continue;
+                }
+                // Copy after rotating so the snapshot covers everything in the rotated segment.
+                // Stored records are never mutated after insertion, so copying references is enough
+                CompletableFuture<Void> rotation = wal.rotate();
+                String metadata = snapshotMetadata();
+                List<StationRecord> dataList = new ArrayList<>(store.values());
+                List<String> lines = new ArrayList<>(dataList.size());
+                for (StationRecord data : dataList) {
+                    lines.add(buildJSONString(data));
                 }
+                wal.writeSnapshot(rotation, metadata, lines);
+                System.out.println(wal.stats());
+            } catch (InterruptedException | IOException e) {
+                e.printStackTrace();
             }
-            return dataMap;
-        } else {
-            return null;
         }
     }
 
-    private static String buildJSONString(Map<String, String> dataMap) {
+    // The clock and each content server's last contact as of the snapshot, so both survive a restart.
+    // Taken after rotating: every record in the rotated segment, leases included, has a clock no later than this
+    private static String snapshotMetadata() {
         StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        int count = 0;
-        for (Map.Entry<String, String> entry : dataMap.entrySet()) {
-            sb.append("\"").append(entry.getKey()).append("\":\"");
-            sb.append(entry.getValue()).append("\"");
-            if (count < dataMap.size() - 1) {
-                sb.append(",");
-            }
-            count++;
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginObject()
+                .name("lamport_clock").value(Math.max(lamportClock.get(), leasedClock))
+                .name("written_at").value(System.currentTimeMillis())
+                .name("last_contact").beginObject();
+        for (Map.Entry<String, Long> contact : contentServersLastContact.entrySet()) {
+            writer.name(contact.getKey()).value(contact.getValue());
         }
-        sb.append("}");
+        writer.endObject().endObject();
         return sb.toString();
     }
 
+    private static String getWeatherDataAsJSON() {
+        StringBuilder sb = new StringBuilder();
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginArray();
+        for (StationRecord data : store.values()) {
+            data.writeTo(writer);
+        }
+        writer.endArray();
+        return sb.toString();
+    }
+
+    // Returns null if the JSON is malformed or has no station id
+    private static StationRecord parseJSON(String jsonString) {
+        return StationRecord.parse(jsonString);
+    }
+
+    private static String buildJSONString(StationRecord data) {
+        return data.toJSON();
+    }
+
+    // Sleeps until the earliest content server deadline and removes only that server's stations
     private static void cleanOldEntries() {
         while (true) {
             try {
-                Thread.sleep(5000); // Check every 5 seconds
-                long currentTime = System.currentTimeMillis();
-                List<Map<String, String>> dataList;
-                synchronized (lock) {
-                    dataList = loadDataList();
-                    boolean updated = false;
-                    Iterator<Map<String, String>> iterator = dataList.iterator();
-                    while (iterator.hasNext()) {
-                        Map<String, String> data = iterator.next();
-                        String clientAddress = data.get("clientAddress");
-                        Long lastContact = contentServersLastContact.get(clientAddress);
-                        if (lastContact == null || (currentTime - lastContact) > TIMEOUT) {
-                            iterator.remove();
-                            contentServersLastContact.remove(clientAddress);
-                            updated = true;
+                String clientAddress = expiry.nextExpired();
+                if (follower != null) {
+                    // A backup only removes stations when the primary does
+                    expiry.touch(clientAddress, System.currentTimeMillis() + TIMEOUT);
+                    continue;
+                }
+                CompletableFuture<Void> commit = null;
+                Long expiredContact = contentServersLastContact.get(clientAddress);
+                boolean renewed = false;
+                int removed = 0;
+                for (String id : store.idsForClient(clientAddress)) {
+                    long lockRequested = System.nanoTime();
+                    synchronized (stripe(id)) {
+                        long lockAcquired = System.nanoTime();
+                        lockWait.record(lockAcquired - lockRequested, "expiry");
+                        try {
+                            // A PUT from this server after the deadline was taken off the queue keeps its stations
+                            Long lastContact = contentServersLastContact.get(clientAddress);
+                            if (lastContact != null && lastContact + TIMEOUT > System.currentTimeMillis()) {
+                                expiry.touch(clientAddress, lastContact + TIMEOUT);
+                                renewed = true;
+                                break;
+                            }
+                            StationRecord data = store.get(id);
+                            if (data == null || !clientAddress.equals(data.getClientAddress())) {
+                                continue; // taken over by another content server meanwhile
+                            }
+                            commit = removeStation(data);
+                            removed++;
+                        } finally {
+                            lockHold.record(System.nanoTime() - lockAcquired, "expiry");
                         }
                     }
-                    if (updated) {
-                        saveDataList(dataList);
-                    }
+                }
+                expiredStations.add(removed);
+                if (!renewed) {
+                    expiredContentServers.inc();
+                }
+                if (expiredContact != null) {
+                    contentServersLastContact.remove(clientAddress, expiredContact);
+                }
+                if (commit != null) {
+                    // Records commit in order, so the last one covers all deletions
+                    WriteAheadLog.await(commit);
                 }
             } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
@@ -278,8 +1474,106 @@ public class AggregationServer {
         }
     }
 
-    private static void restoreDataFromFile() {
-        // Data is loaded on demand, no special action needed
+    // Recovers the stations, the Lamport clock and content server deadlines from the snapshot and the
+    // log; from here on the in-memory store is authoritative. Runs before connections are accepted
+    private static void restoreDataFromFile() throws IOException {
+        long start = System.nanoTime();
+        Map<String, Long> lastContact = new HashMap<>();
+        long lastWritten = readSnapshotMetadata(lastContact);
+        // Snapshot ids are unique and the store takes concurrent puts, so it is filled as lines are parsed
+        wal.readSnapshot(line -> {
+            StationRecord data = parseJSON(line);
+            if (data != null) {
+                store.put(data);
+            }
+        });
+        long snapshotLoaded = System.nanoTime();
+
+        long[] lastLogged = { lastWritten };
+        int[] replayed = { 0 };
+        wal.replay(record -> {
+            if (record.op == 'P') {
+                StationRecord data = parseJSON(record.payload);
+                return data == null ? null : Collections.singletonList(data);
+            }
+            return record.op == 'B' ? StationRecord.parseBatch(record.payload) : null;
+        }, (record, batch) -> {
+            lamportClock.accumulateAndGet(record.clock, Math::max);
+            lastLogged[0] = Math.max(lastLogged[0], record.loggedAt);
+            if (record.op == 'D') {
+                store.remove(record.text());
+            } else if (record.op == 'H') {
+                lastContact.merge(record.text(), record.loggedAt, Math::max);
+            } else if (batch != null) {
+                for (StationRecord data : batch) {
+                    store.put(data);
+                    if (data.getClientAddress() != null && record.loggedAt > 0) {
+                        lastContact.merge(data.getClientAddress(), record.loggedAt, Math::max);
+                    }
+                }
+            }
+            replayed[0]++;
+        });
+        wal.start();
+        // Lease records are replayed like any other, so the clock now resumes past every clock sent
+        durableLease.set(lamportClock.get());
+        leaseClock();
+        changes.reset(lamportClock.get());
+        long logReplayed = System.nanoTime();
+
+        // Downtime does not count against content servers: each keeps what was left of its timeout
+        // when the server last logged anything, and one with no recorded contact gets a full timeout
+        long now = System.currentTimeMillis();
+        Set<String> clients = new HashSet<>();
+        for (StationRecord data : store.values()) {
+            stats.replace(null, data, 0, false);
+            if (data.getClientAddress() != null) {
+                clients.add(data.getClientAddress());
+            }
+        }
+        for (String clientAddress : clients) {
+            Long contact = lastContact.get(clientAddress);
+            long elapsed = contact == null ? 0 : Math.min(TIMEOUT, Math.max(0, lastLogged[0] - contact));
+            contentServersLastContact.put(clientAddress, now - elapsed);
+            expiry.touch(clientAddress, now - elapsed + TIMEOUT);
+        }
+        System.out.printf("Restored %d stations from %s in %d ms (snapshot %d ms, %d log records %d ms), Lamport clock %d%n",
+                store.size(), filePath, (System.nanoTime() - start) / 1000000, (snapshotLoaded - start) / 1000000,
+                replayed[0], (logReplayed - snapshotLoaded) / 1000000, lamportClock.get());
+    }
+
+    // Restores the clock and fills lastContact from the snapshot's metadata; returns when the
+    // snapshot was written, or 0 if it has no metadata, as snapshots written before it did not
+    private static long readSnapshotMetadata(Map<String, Long> lastContact) throws IOException {
+        String metadata = wal.readSnapshotMetadata();
+        if (metadata == null) {
+            return 0;
+        }
+        long writtenAt = 0;
+        try {
+            JsonCodec.Reader reader = new JsonCodec.Reader(metadata);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("lamport_clock")) {
+                    lamportClock.accumulateAndGet(reader.nextLong(), Math::max);
+                } else if (name.equals("written_at")) {
+                    writtenAt = reader.nextLong();
+                } else if (name.equals("last_contact")) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        lastContact.put(reader.nextName(), reader.nextLong());
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring unreadable snapshot metadata: " + e.getMessage());
+        }
+        return writtenAt;
     }
 }
 
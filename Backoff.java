@@ -0,0 +1,57 @@
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry delays for a client whose server failed or shed its request: exponential backoff
+ * with full jitter, so clients that failed together do not all come back together. A
+ * Retry-After from the server sets the least delay. One instance per retrying loop.
+ */
+public class Backoff {
+    private final long baseMillis;
+    private final long maxMillis;
+    private int failures;
+
+    public Backoff(long baseMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Delay before the next attempt after another failure: Retry-After (if the response has
+     * one) plus a random share of base * 2^failures, capped at max unless Retry-After asks
+     * for longer. The response may be null, as after an I/O error.
+     */
+    public long nextDelay(HttpResponse response) {
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(failures, 20));
+        failures++;
+        long jitter = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        long retryAfter = retryAfterMillis(response);
+        return Math.min(Math.max(maxMillis, retryAfter), retryAfter + jitter);
+    }
+
+    /** Starts over after a success. */
+    public void reset() {
+        failures = 0;
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date; 0 if absent or unreadable
+    static long retryAfterMillis(HttpResponse response) {
+        String retryAfter = response == null ? null : response.getHeader("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(), at).toMillis());
+            } catch (DateTimeParseException notADate) {
+                return 0;
+            }
+        }
+    }
+}
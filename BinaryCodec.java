@@ -0,0 +1,202 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Primitives of the binary upload format, sent with Content-Type application/x-weather-binary
+ * as an alternative to JSON. A message is the magic bytes "WSB1", the number of observations
+ * as a varint, then the observations (see StationRecord.writeTo(BinaryCodec.Writer)).
+ *
+ * Numbers are fixed-width big-endian, counts and lengths are unsigned varints, and strings
+ * are UTF-8 prefixed with their byte length. Repeated strings, such as member names outside
+ * the schema or a state, are dictionary references: 0 followed by the string defines the
+ * next entry of the message's dictionary, and n refers back to entry n - 1. The reader
+ * decodes straight from the request's bytes, and throws IllegalArgumentException on
+ * malformed input like JsonCodec.Reader does.
+ */
+public final class BinaryCodec {
+    public static final String CONTENT_TYPE = "application/x-weather-binary";
+    private static final byte[] MAGIC = { 'W', 'S', 'B', '1' };
+
+    private BinaryCodec() {
+    }
+
+    public static final class Reader {
+        private final ByteBuffer in;
+        private final List<String> dictionary = new ArrayList<>();
+
+        public Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        /** Checks the magic bytes and returns the number of observations that follow. */
+        public int readHeader() {
+            for (byte expected : MAGIC) {
+                if (readByte() != expected) {
+                    throw new IllegalArgumentException("Not a binary station message");
+                }
+            }
+            return readCount();
+        }
+
+        public byte readByte() {
+            try {
+                return in.get();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+        }
+
+        public int readInt() {
+            try {
+                return in.getInt();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+        }
+
+        public long readLong() {
+            try {
+                return in.getLong();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+        }
+
+        public double readDouble() {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        public long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        // A count or length, which must fit what is left of the message
+        public int readCount() {
+            long count = readVarint();
+            if (count < 0 || count > in.remaining()) {
+                throw new IllegalArgumentException("Count beyond the end of the message: " + count);
+            }
+            return (int) count;
+        }
+
+        public String readString() {
+            int length = readCount();
+            String value;
+            if (in.hasArray()) {
+                value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        public String readDictionaryString() {
+            long ref = readVarint();
+            if (ref == 0) {
+                // Entries take up message bytes, so the message size bounds the dictionary
+                String value = readString();
+                dictionary.add(value);
+                return value;
+            }
+            if (ref > dictionary.size()) {
+                throw new IllegalArgumentException("Unknown dictionary entry " + ref);
+            }
+            return dictionary.get((int) ref - 1);
+        }
+
+        public void expectEnd() {
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes after the last observation");
+            }
+        }
+    }
+
+    public static final class Writer {
+        private byte[] out = new byte[512];
+        private int size;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        public Writer writeHeader(int count) {
+            for (byte b : MAGIC) {
+                writeByte(b);
+            }
+            return writeVarint(count);
+        }
+
+        public Writer writeByte(int b) {
+            ensure(1);
+            out[size++] = (byte) b;
+            return this;
+        }
+
+        public Writer writeInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out[size++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+
+        public Writer writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out[size++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+
+        public Writer writeDouble(double value) {
+            return writeLong(Double.doubleToRawLongBits(value));
+        }
+
+        public Writer writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            return writeByte((int) value);
+        }
+
+        public Writer writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, out, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        public Writer writeDictionaryString(String value) {
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                return writeVarint(index + 1);
+            }
+            dictionary.put(value, dictionary.size());
+            writeVarint(0);
+            return writeString(value);
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(out, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, in-memory log of recent station changes ordered by Lamport clock, used to answer
+ * delta GETs. Each entry is an upsert (the stored record) or an expiry tombstone (no record).
+ * Once the ring is full the oldest entries are dropped, and a client that is further behind
+ * than that gets a full snapshot instead. Backups replay the same log entry by entry to stay
+ * in step with the primary.
+ *
+ * Nothing here takes a lock. A writer reads the newest entry, ticks the clock and swaps its
+ * entry in as the newest with a CAS, retrying with a fresh tick if another writer got there
+ * first, so entries are published in clock order. It then stores the entry in the ring slot
+ * of its sequence number. Readers start from the newest entry and walk back through the
+ * ring by sequence, waiting out a writer that has published but not yet stored its entry,
+ * and give up if a slot was already reused.
+ */
+public class ChangeLog {
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicReference<Entry> newest;
+    private volatile Entry floor;   // stands in for everything dropped by reset; never in the ring
+    // Only wakes awaitAfter callers; appends take it only when someone is waiting
+    private final Object signal = new Object();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** Latest change per station after some clock; records are null for tombstones. */
+    public static final class Delta {
+        public final long clock;
+        public final Map<String, StationRecord> changes;
+
+        Delta(long clock, Map<String, StationRecord> changes) {
+            this.clock = clock;
+            this.changes = changes;
+        }
+    }
+
+    /** One logged change; the record is null for a tombstone. */
+    public static final class Entry {
+        public final long clock;
+        public final String id;
+        public final StationRecord record;
+        final long sequence;
+        final long previousClock; // tells a reader walking back whether to look any further
+
+        Entry(long sequence, long clock, long previousClock, String id, StationRecord record) {
+            this.sequence = sequence;
+            this.clock = clock;
+            this.previousClock = previousClock;
+            this.id = id;
+            this.record = record;
+        }
+    }
+
+    public ChangeLog(int capacity) {
+        ring = new AtomicReferenceArray<>(capacity);
+        floor = new Entry(-1, 0, 0, null, null);
+        newest = new AtomicReference<>(floor);
+    }
+
+    /** Ticks the clock once and records the change under that clock; record is null for a removal. */
+    public long append(String id, StationRecord record, AtomicLong clock) {
+        Entry previous;
+        Entry entry;
+        do {
+            previous = newest.get();
+            // Ticked after reading the newest entry, so it is later than that entry's clock
+            entry = new Entry(previous.sequence + 1, clock.incrementAndGet(), previous.clock, id, record);
+        } while (!newest.compareAndSet(previous, entry));
+        ring.set(slot(entry.sequence), entry);
+        wakeWaiters();
+        return entry.clock;
+    }
+
+    /** Records several upserts under a single clock tick. */
+    public long appendAll(List<StationRecord> batch, AtomicLong clock) {
+        if (batch.isEmpty()) {
+            return clock.incrementAndGet();
+        }
+        Entry[] entries = new Entry[batch.size()];
+        Entry previous;
+        do {
+            previous = newest.get();
+            long tick = clock.incrementAndGet();
+            long previousClock = previous.clock;
+            for (int i = 0; i < entries.length; i++) {
+                StationRecord record = batch.get(i);
+                entries[i] = new Entry(previous.sequence + 1 + i, tick, previousClock, record.getId(), record);
+                previousClock = tick;
+            }
+        } while (!newest.compareAndSet(previous, entries[entries.length - 1]));
+        for (Entry entry : entries) {
+            ring.set(slot(entry.sequence), entry);
+        }
+        wakeWaiters();
+        return entries[0].clock;
+    }
+
+    /**
+     * Starts over empty at clock, as after a restart; a client further behind gets a full
+     * snapshot. Not meant to race with appends.
+     */
+    public void reset(long clock) {
+        Entry start = new Entry(newest.get().sequence, clock, clock, null, null);
+        floor = start;
+        newest.set(start);
+    }
+
+    public long head() {
+        return newest.get().clock;
+    }
+
+    /** Waits until an entry newer than clock exists, or the timeout passes; returns the head. */
+    public long awaitAfter(long clock, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        // Counted before checking, so an append either is seen here or sees the waiter
+        waiting.incrementAndGet();
+        try {
+            synchronized (signal) {
+                while (head() <= clock && remaining > 0) {
+                    signal.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        return head();
+    }
+
+    /** Changes with a clock above since, or null if some of them were already dropped. */
+    public Delta since(long since) {
+        Entry head = newest.get();
+        List<Entry> newer = newerThan(head, since);
+        if (newer == null) {
+            return null;
+        }
+        // Newest first, so the first entry seen for a station is its latest
+        Map<String, StationRecord> changes = new LinkedHashMap<>();
+        for (Entry entry : newer) {
+            if (!changes.containsKey(entry.id)) {
+                changes.put(entry.id, entry.record);
+            }
+        }
+        return new Delta(head.clock, changes);
+    }
+
+    /** Every entry with a clock above since, oldest first, or null if some were already dropped. */
+    public List<Entry> entriesSince(long since) {
+        List<Entry> newer = newerThan(newest.get(), since);
+        if (newer != null) {
+            Collections.reverse(newer);
+        }
+        return newer;
+    }
+
+    // Entries from head back to the first one not above since, newest first, or null if the walk
+    // reaches one that was dropped
+    private List<Entry> newerThan(Entry head, long since) {
+        Entry start = floor;
+        List<Entry> newer = new ArrayList<>();
+        Entry entry = head;
+        while (entry.clock > since) {
+            if (entry.sequence <= start.sequence) {
+                return null;
+            }
+            newer.add(entry);
+            if (entry.previousClock <= since) {
+                break;
+            }
+            entry = entryAt(entry.sequence - 1, start);
+            if (entry == null) {
+                return null;
+            }
+        }
+        return newer;
+    }
+
+    // The entry with this sequence, or null if its slot was reused or reset dropped it
+    private Entry entryAt(long sequence, Entry start) {
+        if (sequence <= start.sequence) {
+            return start;
+        }
+        while (true) {
+            Entry entry = ring.get(slot(sequence));
+            if (entry != null && entry.sequence >= sequence) {
+                return entry.sequence == sequence ? entry : null;
+            }
+            // Published as the newest by a writer that has not stored it yet
+            Thread.yield();
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % ring.length());
+    }
+
+    private void wakeWaiters() {
+        if (waiting.get() > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+}
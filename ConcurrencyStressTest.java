@@ -0,0 +1,178 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress test against a running AggregationServer. For 1, 2, 4, ... client
+ * threads (up to twice the core count, at least 4) every thread keeps a connection open and
+ * PUTs its own stations, with a filtered GET after every third PUT. It checks that:
+ *  - every response carries a Lamport clock above the one the request sent, and above the
+ *    previous response on the same connection;
+ *  - after each step the server holds the last value written for every station (no lost updates).
+ * Throughput per thread count shows how the server scales with cores.
+ * Run with: java ConcurrencyStressTest [server] [port] [seconds per step]
+ */
+public class ConcurrencyStressTest {
+    private static final int STATIONS_PER_THREAD = 100;
+
+    private static final AtomicLong violations = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        String server = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 4567;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(cores + " cores available");
+        System.out.printf("%8s %12s %10s %10s%n", "threads", "requests/s", "errors", "violations");
+        for (int threads = 1; threads <= Math.max(4, 2 * cores); threads *= 2) {
+            runStep(server, port, threads, seconds);
+        }
+        if (violations.get() > 0) {
+            System.out.println("FAILED: " + violations.get() + " violations");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static void runStep(String server, int port, int threads, int seconds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong requests = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long violationsBefore = violations.get();
+        List<Future<long[]>> lastWritten = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            lastWritten.add(executor.submit(() -> drive(server, port, threads, thread, deadline, requests, errors)));
+        }
+
+        // Every station must hold the last sequence number its thread wrote
+        executor.shutdown();
+        try (Client client = new Client(server, port)) {
+            for (int t = 0; t < threads; t++) {
+                long[] sequences = lastWritten.get(t).get();
+                for (int s = 0; s < STATIONS_PER_THREAD; s++) {
+                    if (sequences[s] < 0) {
+                        continue;
+                    }
+                    HttpResponse response = client.send("GET", "/weather.json?id=" + stationId(threads, t, s), null);
+                    List<Map<String, Object>> found = JsonCodec.parseArray(new String(response.body, StandardCharsets.UTF_8));
+                    Object seq = found.isEmpty() ? null : found.get(0).get("seq");
+                    if (!(seq instanceof Number) || ((Number) seq).longValue() != sequences[s]) {
+                        violations.incrementAndGet();
+                        System.out.println("Lost update for " + stationId(threads, t, s) + ": expected seq "
+                                + sequences[s] + ", found " + seq);
+                    }
+                }
+            }
+        }
+        System.out.printf("%8d %12.0f %10d %10d%n", threads, (double) requests.get() / seconds,
+                errors.get(), violations.get() - violationsBefore);
+    }
+
+    // Returns the last sequence number written per station, -1 if none succeeded
+    private static long[] drive(String server, int port, int threads, int thread, long deadline,
+            AtomicLong requests, AtomicLong errors) {
+        long[] sequences = new long[STATIONS_PER_THREAD];
+        Arrays.fill(sequences, -1);
+        Client client = null;
+        long seq = 0;
+        long puts = 0;
+        int station = 0;
+        while (System.nanoTime() < deadline) {
+            try {
+                if (client == null) {
+                    client = new Client(server, port);
+                }
+                HttpResponse response;
+                if (seq % 4 == 3) {
+                    // Read back the station written last
+                    response = client.send("GET", "/weather.json?id=" + stationId(threads, thread, station), null);
+                } else {
+                    station = (int) (puts++ % STATIONS_PER_THREAD);
+                    String id = stationId(threads, thread, station);
+                    String json = "{\"id\":\"" + id + "\",\"state\":\"SA\",\"air_temp\":" + (seq % 40)
+                            + ",\"seq\":" + seq + "}";
+                    response = client.send("PUT", "/weather.json", json);
+                    if (response.status.startsWith("200")) {
+                        sequences[station] = seq;
+                    }
+                }
+                requests.incrementAndGet();
+                seq++;
+                if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+                    client.close();
+                    client = null;
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                if (client != null) {
+                    client.close();
+                    client = null;
+                }
+            }
+        }
+        if (client != null) {
+            client.close();
+        }
+        return sequences;
+    }
+
+    private static String stationId(int threads, int thread, int station) {
+        return "STRESS-" + threads + "-" + thread + "-" + station;
+    }
+
+    // One keep-alive connection that checks the Lamport clock of every response
+    private static final class Client implements Closeable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lamportClock;
+
+        Client(String server, int port) throws IOException {
+            socket = new Socket(server, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        HttpResponse send(String method, String target, String json) throws IOException {
+            byte[] body = json == null ? new byte[0] : json.getBytes(StandardCharsets.UTF_8);
+            long sent = ++lamportClock;
+            String request = method + " " + target + " HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    (json == null ? "" : "Content-Type: application/json\r\n" +
+                            "Content-Length: " + body.length + "\r\n") +
+                    "Lamport-Clock: " + sent + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.write(body);
+            out.flush();
+            HttpResponse response = HttpResponse.read(in);
+            if (response == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            long received = Long.parseLong(response.getHeader("Lamport-Clock"));
+            if (received <= sent) {
+                violations.incrementAndGet();
+                System.out.println("Lamport clock went backwards: sent " + sent + ", received " + received);
+            }
+            lamportClock = Math.max(lamportClock, received);
+            return response;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
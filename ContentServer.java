@@ -1,60 +1,115 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class ContentServer {
-    private static int lamportClock = 0;
+    private static final long PUSH_INTERVAL = 10000;
+    private static long lamportClock = 0;
+    private static boolean binary; // send the binary encoding instead of JSON
+
+    // One connection is kept open and reused for every PUT until the server closes it
+    private static Socket socket;
+    private static InputStream socketIn;
+    private static ServerList.Server connectedTo;
 
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Usage: ContentServer <server> <port> <file>");
+            System.out.println("Usage: ContentServer <server>[,<server>[:<port>]...] <port> <file|directory>"
+                    + " [--watch] [--connections=<n>] [--binary]");
             return;
         }
 
-        String serverName = args[0];
-        int port = Integer.parseInt(args[1]);
+        // Further servers are backups to fail over to
+        ServerList servers = new ServerList(args[0], Integer.parseInt(args[1]));
         String fileName = args[2];
 
+        boolean watch = false;
+        int connections = 2;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].startsWith("--connections=")) {
+                connections = Integer.parseInt(args[i].substring("--connections=".length()));
+            } else if (args[i].equals("--binary")) {
+                binary = true;
+            }
+        }
+        if (watch) {
+            // Upload only changed station files from the directory, plus heartbeats
+            try {
+                new StationWatcher(servers, Paths.get(fileName), binary).run(connections);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // Retries after a failure or a shed request back off, so a crowd of content servers
+        // reconnecting at once spreads out instead of retrying in step
+        Backoff backoff = new Backoff(1000, 60000);
         while (true) {
             lamportClock++;
-            try (
-                Socket socket = new Socket(serverName, port);
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-            ) {
-                String jsonData = readWeatherDataFromFile(fileName);
+            try {
+                // A directory of station files goes up as one batch PUT
+                String jsonData = new File(fileName).isDirectory()
+                        ? readWeatherDataFromDirectory(fileName)
+                        : readWeatherDataFromFile(fileName);
                 if (jsonData == null) {
                     System.out.println("Error reading weather data.");
-                    Thread.sleep(10000); 
+                    Thread.sleep(PUSH_INTERVAL);
                     continue;
                 }
 
-                String request = "PUT /weather.json HTTP/1.1\r\n" +
-                        "Host: " + serverName + "\r\n" +
-                        "Content-Type: application/json\r\n" +
-                        "Content-Length: " + jsonData.length() + "\r\n" +
-                        "Lamport-Clock: " + lamportClock + "\r\n" +
-                        "\r\n" +
-                        jsonData;
-
-                out.write(request);
-                out.flush();
-
-                String responseLine;
-                while ((responseLine = in.readLine()) != null && !responseLine.isEmpty()) {
-                    if (responseLine.startsWith("Lamport-Clock: ")) {
-                        int serverLamportClock = Integer.parseInt(responseLine.substring("Lamport-Clock: ".length()));
-                        lamportClock = Math.max(lamportClock, serverLamportClock) + 1;
+                HttpResponse response;
+                boolean reused = socket != null;
+                try {
+                    response = sendPUT(servers, jsonData);
+                } catch (IOException e) {
+                    if (!reused) {
+                        throw e;
                     }
-                    System.out.println(responseLine);
+                    // The server may have closed the idle connection; retry once on a fresh one
+                    disconnect();
+                    response = sendPUT(servers, jsonData);
                 }
 
-                Thread.sleep(10000); 
+                String serverClock = response.getHeader("Lamport-Clock");
+                if (serverClock != null) {
+                    long serverLamportClock = Long.parseLong(serverClock);
+                    lamportClock = Math.max(lamportClock, serverLamportClock) + 1;
+                }
+                System.out.println("HTTP/1.1 " + response.status);
+                for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                    System.out.println(header.getKey() + ": " + header.getValue());
+                }
+                if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+                    disconnect();
+                }
+                long delay = PUSH_INTERVAL;
+                if (response.getHeader("Replica-Of") != null) {
+                    // A read-only backup; send the update to another server
+                    servers.failed(connectedTo);
+                    disconnect();
+                    delay = backoff.nextDelay(response);
+                } else if (response.status.startsWith("503")) {
+                    // Overloaded; wait at least as long as its Retry-After asks
+                    delay = backoff.nextDelay(response);
+                } else {
+                    backoff.reset();
+                }
+
+                Thread.sleep(delay);
 
             } catch (IOException | InterruptedException e) {
                 e.printStackTrace();
+                if (connectedTo != null) {
+                    servers.failed(connectedTo);
+                }
+                disconnect();
                 try {
-                    Thread.sleep(10000); // Wait before retrying
+                    Thread.sleep(backoff.nextDelay(null)); // Wait before retrying
                 } catch (InterruptedException interruptedException) {
                     interruptedException.printStackTrace();
                 }
@@ -62,9 +117,79 @@ public class ContentServer {
         }
     }
 
-    private static String readWeatherDataFromFile(String fileName) {
+    private static HttpResponse sendPUT(ServerList servers, String jsonData) throws IOException {
+        if (socket == null) {
+            socket = servers.connect();
+            socketIn = new BufferedInputStream(socket.getInputStream());
+            connectedTo = servers.current();
+        }
+        byte[] body = binary ? toBinary(jsonData) : null;
+        String contentType = body != null ? BinaryCodec.CONTENT_TYPE : "application/json";
+        if (body == null) {
+            body = jsonData.getBytes(StandardCharsets.UTF_8);
+        }
+        String request = "PUT /weather.json HTTP/1.1\r\n" +
+                "Host: " + connectedTo.host + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Lamport-Clock: " + lamportClock + "\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n";
+
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+
+        HttpResponse response = HttpResponse.read(socketIn);
+        if (response == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return response;
+    }
+
+    // The binary encoding of a JSON observation or array of them; null if there is none to encode,
+    // in which case the JSON goes as it is and the server reports what is wrong with it
+    static byte[] toBinary(String jsonData) {
+        List<StationRecord> records = StationRecord.parseBatch(jsonData);
+        return records == null || records.isEmpty() ? null : StationRecord.toBinary(records);
+    }
+
+    private static void disconnect() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        socket = null;
+        socketIn = null;
+        connectedTo = null;
+    }
+
+    // Returns the stations of every file in the directory as a JSON array, or null on error
+    private static String readWeatherDataFromDirectory(String directory) {
+        File[] files = new File(directory).listFiles(File::isFile);
+        if (files == null) {
+            return null;
+        }
+        Arrays.sort(files);
+        StringJoiner batch = new StringJoiner(",", "[", "]");
+        for (File file : files) {
+            String jsonData = readWeatherDataFromFile(file.getPath());
+            if (jsonData == null) {
+                return null;
+            }
+            batch.add(jsonData);
+        }
+        return batch.toString();
+    }
+
+    static String readWeatherDataFromFile(String fileName) {
         try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            Map<String, String> dataMap = new HashMap<>();
+            Map<String, String> dataMap = new LinkedHashMap<>();
             String line;
             while ((line = br.readLine()) != null) {
                 int idx = line.indexOf(":");
@@ -81,19 +206,19 @@ public class ContentServer {
         }
     }
 
+    // Values that look like numbers are sent as JSON numbers, everything else as strings
     private static String buildJSONString(Map<String, String> dataMap) {
         StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        int count = 0;
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginObject();
         for (Map.Entry<String, String> entry : dataMap.entrySet()) {
-            sb.append("\"").append(entry.getKey()).append("\":\"");
-            sb.append(entry.getValue()).append("\"");
-            if (count < dataMap.size() - 1) {
-                sb.append(",");
+            writer.name(entry.getKey());
+            if (JsonCodec.isNumber(entry.getValue())) {
+                writer.rawNumber(entry.getValue());
+            } else {
+                writer.value(entry.getValue());
             }
-            count++;
         }
-        sb.append("}");
+        writer.endObject();
         return sb.toString();
     }
 }
@@ -0,0 +1,10 @@
+/**
+ * Outlet of a streaming response, provided by the server engine that writes it. Any thread
+ * may send; the engine writes the bytes to the client in order.
+ */
+public interface EventSink {
+    /** Queues bytes for the client; returns false if the client is gone or too far behind. */
+    boolean send(byte[] data);
+
+    void close();
+}
@@ -0,0 +1,57 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads Server-Sent Events from a response body one event at a time. The last event id
+ * seen is remembered across events, as the SSE format prescribes, so a reconnecting client
+ * can send it back in Last-Event-ID.
+ */
+public class EventStreamReader {
+    private final BufferedReader reader;
+    private String event;
+    private String data;
+    private String lastEventId;
+
+    public EventStreamReader(InputStream in, String lastEventId) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        this.lastEventId = lastEventId;
+    }
+
+    /** Reads the next event that has data; returns false when the stream ends. */
+    public boolean next() throws IOException {
+        String type = "message";
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                // A blank line ends the event
+                if (buffer.length() > 0) {
+                    event = type;
+                    data = buffer.toString();
+                    return true;
+                }
+                type = "message";
+            } else if (line.startsWith("event:")) {
+                type = line.substring("event:".length()).trim();
+            } else if (line.startsWith("data:")) {
+                buffer.append(buffer.length() > 0 ? "\n" : "").append(line.substring("data:".length()).trim());
+            } else if (line.startsWith("id:")) {
+                lastEventId = line.substring("id:".length()).trim();
+            }
+            // Lines starting with ':' are keep-alive comments
+        }
+        return false;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public String getLastEventId() {
+        return lastEventId;
+    }
+}
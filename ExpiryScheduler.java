@@ -0,0 +1,77 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks one expiry deadline per key (here: per content server) in a priority queue ordered
+ * by deadline. Extending a deadline only updates a map entry; the queued entry is re-queued
+ * with the newer deadline when it reaches the head. The expiry thread therefore sleeps until
+ * the earliest deadline and only ever touches keys that are actually due. Each scheduled key
+ * has exactly one queued entry.
+ *
+ * Touching a key that is already scheduled, as every PUT and heartbeat does, is a compare-
+ * and-set on the map without taking the monitor; only scheduling a new key queues an entry.
+ */
+public class ExpiryScheduler {
+    private final ConcurrentMap<String, Long> deadlines = new ConcurrentHashMap<>();
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(Comparator.comparingLong(e -> e.deadline));
+
+    private static final class Entry {
+        final String key;
+        final long deadline;
+
+        Entry(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Sets the key's deadline, scheduling the key if it is not scheduled yet. */
+    public void touch(String key, long deadline) {
+        Long previous = deadlines.get(key);
+        while (true) {
+            if (previous == null) {
+                previous = deadlines.putIfAbsent(key, deadline);
+                if (previous == null) {
+                    synchronized (this) {
+                        queue.add(new Entry(key, deadline));
+                        notifyAll(); // may be earlier than the deadline the expiry thread is waiting for
+                    }
+                    return;
+                }
+            }
+            if (previous >= deadline || deadlines.replace(key, previous, deadline)) {
+                return; // deadlines only move forward
+            }
+            previous = deadlines.get(key);
+        }
+    }
+
+    /** Blocks until some key's deadline has passed, unschedules it and returns it. */
+    public synchronized String nextExpired() throws InterruptedException {
+        while (true) {
+            Entry head = queue.peek();
+            if (head == null) {
+                wait();
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (head.deadline > now) {
+                wait(head.deadline - now);
+                continue;
+            }
+            queue.poll();
+            // Only removed if not touched in between, so a late touch is never lost
+            Long deadline = deadlines.get(head.key);
+            if (deadline > head.deadline || !deadlines.remove(head.key, deadline)) {
+                queue.add(new Entry(head.key, deadlines.get(head.key))); // touched since it was queued
+                continue;
+            }
+            return head.key;
+        }
+    }
+
+    public int size() {
+        return deadlines.size();
+    }
+}
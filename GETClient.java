@@ -1,84 +1,287 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 public class GETClient {
-    private static int lamportClock = 0;
+    private static long lamportClock = 0;
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: GETClient <server> <port>");
+            System.out.println("Usage: GETClient <server>[,<server>[:<port>]...] <port> [--poll=<seconds>] [--delta] [--follow] [--compressed] [--id=<station>]"
+                    + " [--state=<state>] [--bbox=<minLat>,<minLon>,<maxLat>,<maxLon>]");
             return;
         }
 
-        String serverName = args[0];
-        int port = Integer.parseInt(args[1]);
-
-        lamportClock++;
-        try (
-            Socket socket = new Socket(serverName, port);
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            // Send GET request
-            String request = "GET /weather.json HTTP/1.1\r\n" +
-                    "Host: " + serverName + "\r\n" +
-                    "Lamport-Clock: " + lamportClock + "\r\n" +
-                    "\r\n";
-            out.write(request);
-            out.flush();
-
-            // Read response
-            String responseLine;
-            StringBuilder responseBody = new StringBuilder();
-            boolean headersEnded = false;
-            while ((responseLine = in.readLine()) != null) {
-                if (responseLine.isEmpty()) {
-                    headersEnded = true;
-                    continue;
+        // Further servers, such as backups, are tried when one cannot be reached
+        ServerList servers = new ServerList(args[0], Integer.parseInt(args[1]));
+        int pollSeconds = 0;
+        boolean delta = false;
+        boolean follow = false;
+        boolean compressed = false;
+        StringBuilder query = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--poll=")) {
+                pollSeconds = Integer.parseInt(args[i].substring("--poll=".length()));
+            } else if (args[i].equals("--delta")) {
+                // Fetch only changes since the last response and apply them to a local view
+                delta = true;
+            } else if (args[i].equals("--follow")) {
+                // Subscribe to the server's event stream instead of polling
+                follow = true;
+            } else if (args[i].equals("--compressed")) {
+                // Ask for a gzip or deflate body; it is decompressed before display
+                compressed = true;
+            } else if (args[i].startsWith("--id=") || args[i].startsWith("--state=") || args[i].startsWith("--bbox=")) {
+                // Filters are passed to the server as query parameters
+                int eq = args[i].indexOf('=');
+                query.append(query.length() == 0 ? "?" : "&")
+                        .append(args[i], 2, eq)
+                        .append('=')
+                        .append(URLEncoder.encode(args[i].substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        if ((delta || follow) && query.length() > 0) {
+            System.out.println("--delta and --follow cannot be combined with filters");
+            return;
+        }
+        if (follow) {
+            try {
+                follow(servers);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        String target = "/weather.json" + query;
+
+        Socket socket = null;
+        InputStream in = null;
+        String etag = null; // lets the server answer 304 when nothing changed since the last poll
+        Map<String, Map<String, Object>> view = new TreeMap<>(); // materialized view in delta mode
+        String epoch = null;
+        long sinceLamport = 0;
+        try {
+            while (true) {
+                lamportClock++;
+                boolean reused = socket != null;
+                if (socket == null) {
+                    // Keep the connection open between polls; the server may still close it
+                    socket = servers.connect();
+                    in = new BufferedInputStream(socket.getInputStream());
                 }
-                if (headersEnded) {
-                    responseBody.append(responseLine);
-                } else {
-                    if (responseLine.startsWith("Lamport-Clock: ")) {
-                        int serverLamportClock = Integer.parseInt(responseLine.substring("Lamport-Clock: ".length()));
-                        lamportClock = Math.max(lamportClock, serverLamportClock) + 1;
+
+                Map<String, String> headers = new LinkedHashMap<>();
+                if (compressed) {
+                    headers.put("Accept-Encoding", "gzip, deflate");
+                }
+                if (delta) {
+                    headers.put("Since-Lamport", String.valueOf(sinceLamport));
+                    if (epoch != null) {
+                        headers.put("Change-Log-Epoch", epoch);
                     }
+                } else if (etag != null) {
+                    headers.put("If-None-Match", etag);
+                }
+                HttpResponse response;
+                try {
+                    response = sendGET(socket, in, servers.current().host, target, pollSeconds > 0, headers);
+                } catch (IOException e) {
+                    if (!reused) {
+                        if (servers.size() == 1) {
+                            throw e;
+                        }
+                        servers.failed(servers.current()); // it failed mid-request
+                    }
+                    socket.close();
+                    socket = servers.connect();
+                    in = new BufferedInputStream(socket.getInputStream());
+                    response = sendGET(socket, in, servers.current().host, target, pollSeconds > 0, headers);
                 }
-            }
 
-            // Display weather data
-            String jsonData = responseBody.toString();
-            if (jsonData.isEmpty()) {
-                System.out.println("No data received.");
-            } else {
-                displayWeatherData(jsonData);
-            }
+                String serverClock = response.getHeader("Lamport-Clock");
+                if (serverClock != null) {
+                    long serverLamportClock = Long.parseLong(serverClock);
+                    lamportClock = Math.max(lamportClock, serverLamportClock) + 1;
+                }
+
+                // Display weather data
+                String jsonData = new String(response.decodedBody(), StandardCharsets.UTF_8);
+                if (delta && response.status.startsWith("200")) {
+                    Map<String, Object> changes = JsonCodec.parseObject(jsonData);
+                    epoch = (String) changes.get("epoch");
+                    sinceLamport = ((Number) changes.get("lamport")).longValue();
+                    applyDelta(view, changes);
+                } else if (response.status.startsWith("304")) {
+                    System.out.println("Not modified.");
+                } else if (jsonData.isEmpty()) {
+                    System.out.println("No data received.");
+                } else {
+                    displayWeatherData(jsonData);
+                    etag = response.getHeader("ETag");
+                }
 
+                if (pollSeconds <= 0) {
+                    break;
+                }
+                if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+                    socket.close();
+                    socket = null;
+                }
+                Thread.sleep(pollSeconds * 1000L);
+            }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
-    private static void displayWeatherData(String jsonData) {
-        jsonData = jsonData.trim();
-        if (jsonData.startsWith("[") && jsonData.endsWith("]")) {
-            jsonData = jsonData.substring(1, jsonData.length() - 1); // Remove [ and ]
-            String[] dataEntries = jsonData.split("\\},\\{");
-            for (String entry : dataEntries) {
-                entry = entry.replace("{", "").replace("}", "");
-                String[] fields = entry.split(",");
-                for (String field : fields) {
-                    String[] keyValue = field.split(":", 2);
-                    if (keyValue.length == 2) {
-                        String key = keyValue[0].replace("\"", "").trim();
-                        String value = keyValue[1].replace("\"", "").trim();
-                        System.out.println(key + ": " + value);
-                    }
+    // Follows GET /events into a local view; after a disconnect it resumes from the last event id
+    private static void follow(ServerList servers) throws InterruptedException {
+        Map<String, Map<String, Object>> view = new TreeMap<>();
+        String lastEventId = null;
+        while (true) {
+            try (Socket socket = servers.connect()) {
+                lamportClock++;
+                String request = "GET /events HTTP/1.1\r\n" +
+                        "Host: " + servers.current().host + "\r\n" +
+                        "Lamport-Clock: " + lamportClock + "\r\n" +
+                        "Accept: text/event-stream\r\n" +
+                        (lastEventId != null ? "Last-Event-ID: " + lastEventId + "\r\n" : "") +
+                        "\r\n";
+                OutputStream out = socket.getOutputStream();
+                out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+
+                // The stream has no Content-Length, so only the head is read as a response
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                HttpResponse head = HttpResponse.readHead(in);
+                if (head == null) {
+                    throw new EOFException("Server closed the connection");
+                }
+                String serverClock = head.getHeader("Lamport-Clock");
+                if (serverClock != null) {
+                    long serverLamportClock = Long.parseLong(serverClock);
+                    lamportClock = Math.max(lamportClock, serverLamportClock) + 1;
+                }
+                if (!head.status.startsWith("200")) {
+                    System.out.println(head.status);
+                    return;
                 }
-                System.out.println("--------------------------");
+
+                EventStreamReader events = new EventStreamReader(in, lastEventId);
+                while (events.next()) {
+                    applyEvent(view, events.getEvent(), events.getData());
+                    lastEventId = events.getLastEventId();
+                }
+                System.out.println("Event stream closed, reconnecting.");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Thread.sleep(1000); // Wait before reconnecting
+        }
+    }
+
+    // Applies one snapshot, upsert or delete event to the view and prints what changed
+    private static void applyEvent(Map<String, Map<String, Object>> view, String event, String data) {
+        try {
+            switch (event) {
+                case "snapshot":
+                    view.clear();
+                    for (Map<String, Object> station : JsonCodec.parseArray(data)) {
+                        view.put(String.valueOf(station.get("id")), station);
+                        displayStation(station);
+                    }
+                    System.out.println("Snapshot, " + view.size() + " stations in view");
+                    break;
+                case "upsert":
+                    Map<String, Object> station = JsonCodec.parseObject(data);
+                    view.put(String.valueOf(station.get("id")), station);
+                    displayStation(station);
+                    break;
+                case "delete":
+                    String id = (String) new JsonCodec.Reader(data).readValue();
+                    if (view.remove(id) != null) {
+                        System.out.println("Removed: " + id);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid event data.");
+        }
+    }
+
+    private static HttpResponse sendGET(Socket socket, InputStream in, String serverName, String target,
+                                        boolean keepAlive, Map<String, String> headers) throws IOException {
+        // Send GET request
+        StringBuilder request = new StringBuilder("GET " + target + " HTTP/1.1\r\n" +
+                "Host: " + serverName + "\r\n" +
+                "Lamport-Clock: " + lamportClock + "\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        request.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        // Read response; Content-Length marks its end so the connection can be reused
+        HttpResponse response = HttpResponse.read(in);
+        if (response == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return response;
+    }
+
+    // Applies a delta response to the view and prints what changed
+    @SuppressWarnings("unchecked")
+    private static void applyDelta(Map<String, Map<String, Object>> view, Map<String, Object> changes) {
+        if (Boolean.TRUE.equals(changes.get("full"))) {
+            view.clear();
+        }
+        for (Object upsert : (List<Object>) changes.get("upserts")) {
+            Map<String, Object> station = (Map<String, Object>) upsert;
+            view.put(String.valueOf(station.get("id")), station);
+            displayStation(station);
+        }
+        for (Object id : (List<Object>) changes.get("deletes")) {
+            if (view.remove(String.valueOf(id)) != null) {
+                System.out.println("Removed: " + id);
             }
-        } else {
+        }
+        System.out.println((Boolean.TRUE.equals(changes.get("full")) ? "Full snapshot, " : "")
+                + view.size() + " stations in view at Lamport clock " + changes.get("lamport"));
+    }
+
+    private static void displayWeatherData(String jsonData) {
+        List<Map<String, Object>> dataEntries;
+        try {
+            dataEntries = JsonCodec.parseArray(jsonData);
+        } catch (IllegalArgumentException e) {
             System.out.println("Invalid data format.");
+            return;
+        }
+        for (Map<String, Object> entry : dataEntries) {
+            displayStation(entry);
+        }
+    }
+
+    private static void displayStation(Map<String, Object> station) {
+        for (Map.Entry<String, Object> field : station.entrySet()) {
+            System.out.println(field.getKey() + ": " + field.getValue());
         }
+        System.out.println("--------------------------");
     }
 }
\ No newline at end of file
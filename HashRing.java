@@ -0,0 +1,64 @@
+import java.util.*;
+
+/**
+ * Consistent hash ring mapping station ids to nodes ("host:port"). Each node is placed at
+ * many points on the ring so stations spread evenly, and adding or removing a node only
+ * moves the stations between it and its neighbours. Immutable; membership changes build a
+ * new ring.
+ */
+public class HashRing {
+    private static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    private final long[] points;   // sorted ring positions
+    private final String[] owners; // node at each position
+
+    public HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            i++;
+        }
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /** The node owning a station: the first point at or after the id's hash, wrapping around. */
+    public String owner(String stationId) {
+        int idx = Arrays.binarySearch(points, hash(stationId));
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return owners[idx == points.length ? 0 : idx];
+    }
+
+    // 64-bit FNV-1a followed by the MurmurHash3 finalizer, so similar ids land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A parsed HTTP request, produced either from a blocking stream or from bytes
+ * accumulated by the selector engine. Header names are kept as sent.
+ */
+public class HttpRequest {
+    public final String method;
+    public final String target;
+    public final String version;
+    public final Map<String, String> headers;
+    public final byte[] body;
+    public final String clientAddress;
+    public final long receivedAt = System.nanoTime(); // once complete, for admission control's queue delay
+
+    HttpRequest(String method, String target, String version, Map<String, String> headers, byte[] body, String clientAddress) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+        this.clientAddress = clientAddress;
+    }
+
+    public int getContentLength() {
+        return Integer.parseInt(headers.getOrDefault("Content-Length", "0").trim());
+    }
+
+    /** The request target without its query string. */
+    public String getPath() {
+        int idx = target.indexOf('?');
+        return idx < 0 ? target : target.substring(0, idx);
+    }
+
+    /** The first value of a query parameter, URL-decoded, or null if absent. */
+    public String getQueryParameter(String name) {
+        int idx = target.indexOf('?');
+        if (idx < 0) {
+            return null;
+        }
+        for (String pair : target.substring(idx + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /** HTTP/1.1 connections stay open unless the client asks otherwise; HTTP/1.0 must opt in. */
+    public boolean wantsKeepAlive() {
+        String connection = headers.getOrDefault("Connection", "");
+        if (version.equals("HTTP/1.1")) {
+            return !connection.equalsIgnoreCase("close");
+        }
+        return connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * Reads one request from a blocking stream. Returns null if the stream ends before a
+     * request line arrives. A body cut short by the peer is returned as read, so the
+     * caller can compare it with Content-Length.
+     */
+    public static HttpRequest read(InputStream in, String clientAddress) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+            return null;
+        }
+        StringBuilder head = new StringBuilder(requestLine).append("\n");
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            head.append(line).append("\n");
+        }
+        HttpRequest request = parseHead(head.toString(), null, clientAddress);
+        byte[] body = in.readNBytes(request.getContentLength());
+        return new HttpRequest(request.method, request.target, request.version, request.headers, body, clientAddress);
+    }
+
+    /**
+     * Parses one request from the front of a buffer in read mode. Returns null and leaves
+     * the buffer untouched if the request is not complete yet; otherwise the request's
+     * bytes are consumed.
+     */
+    public static HttpRequest parse(ByteBuffer buffer, String clientAddress) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int headEnd = -1;
+        int bodyStart = -1;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < end && buffer.get(i + 1) == '\n') {
+                headEnd = i;
+                bodyStart = i + 2;
+                break;
+            }
+            if (i + 2 < end && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                headEnd = i;
+                bodyStart = i + 3;
+                break;
+            }
+        }
+        if (headEnd < 0) {
+            return null;
+        }
+        if (headEnd > start && buffer.get(headEnd - 1) == '\r') {
+            headEnd--;
+        }
+
+        byte[] headBytes = new byte[headEnd - start];
+        buffer.get(start, headBytes);
+        HttpRequest request = parseHead(new String(headBytes, StandardCharsets.ISO_8859_1), null, clientAddress);
+        int contentLength = request.getContentLength();
+        if (end - bodyStart < contentLength) {
+            return null;
+        }
+        byte[] body = new byte[contentLength];
+        buffer.get(bodyStart, body);
+        buffer.position(bodyStart + contentLength);
+        return new HttpRequest(request.method, request.target, request.version, request.headers, body, clientAddress);
+    }
+
+    private static HttpRequest parseHead(String head, byte[] body, String clientAddress) {
+        String[] lines = head.split("\r?\n");
+        String[] requestParts = lines[0].split(" ");
+        String method = requestParts[0];
+        String target = requestParts.length > 1 ? requestParts[1] : "/";
+        String version = requestParts.length > 2 ? requestParts[2] : "HTTP/1.0";
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int idx = lines[i].indexOf(": ");
+            if (idx > 0) {
+                headers.put(lines[i].substring(0, idx), lines[i].substring(idx + 2));
+            }
+        }
+        return new HttpRequest(method, target, version, headers, body, clientAddress);
+    }
+
+    // Reads a CRLF or LF terminated line in ISO-8859-1, or null at end of stream
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+}
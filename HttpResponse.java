@@ -0,0 +1,147 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A response ready to be written by any server engine, or read back by a client.
+ * Content-Length is always derived from the body bytes, except for a streaming response:
+ * its body is only the start, and the engine keeps the connection open and hands an
+ * EventSink to the response's stream callback for the rest.
+ */
+public class HttpResponse {
+    public final String status;
+    public final Map<String, String> headers = new LinkedHashMap<>();
+    public final byte[] body;
+    private Consumer<EventSink> stream;
+
+    public HttpResponse(String status, byte[] body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    public HttpResponse(String status, String body) {
+        this(status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public HttpResponse header(String name, Object value) {
+        headers.put(name, String.valueOf(value));
+        return this;
+    }
+
+    /** Makes this a streaming response; onOpen gets the sink once the head and body are queued. */
+    public HttpResponse stream(Consumer<EventSink> onOpen) {
+        this.stream = onOpen;
+        return this;
+    }
+
+    public Consumer<EventSink> getStream() {
+        return stream;
+    }
+
+    /**
+     * Reads one response from a blocking stream, using Content-Length to find the end of
+     * the body so the connection can be reused. Returns null if the server closed the
+     * connection before sending a status line.
+     */
+    public static HttpResponse read(InputStream in) throws IOException {
+        HttpResponse head = readHead(in);
+        if (head == null) {
+            return null;
+        }
+        int contentLength = Integer.parseInt(head.headers.getOrDefault("Content-Length", "0").trim());
+        byte[] body = in.readNBytes(contentLength);
+        if (body.length != contentLength) {
+            throw new EOFException("Connection closed in the middle of a response body");
+        }
+        HttpResponse response = new HttpResponse(head.status, body);
+        response.headers.putAll(head.headers);
+        response.headers.remove("Content-Length");
+        return response;
+    }
+
+    /**
+     * Reads only the status line and headers, leaving the body in the stream; used for
+     * streaming responses, which have no Content-Length. Returns null like read().
+     */
+    public static HttpResponse readHead(InputStream in) throws IOException {
+        String statusLine = HttpRequest.readLine(in);
+        if (statusLine == null) {
+            return null;
+        }
+        int idx = statusLine.indexOf(' ');
+        String status = idx > 0 ? statusLine.substring(idx + 1) : statusLine;
+
+        HttpResponse response = new HttpResponse(status, new byte[0]);
+        String line;
+        while ((line = HttpRequest.readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(": ");
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon), line.substring(colon + 2));
+            }
+        }
+        return response;
+    }
+
+    /** Tells the client whether the server keeps the connection open after this response. */
+    public HttpResponse connection(boolean keepAlive, int idleTimeoutMillis) {
+        if (keepAlive) {
+            header("Connection", "keep-alive");
+            header("Keep-Alive", "timeout=" + idleTimeoutMillis / 1000);
+        } else {
+            header("Connection", "close");
+        }
+        return this;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /** Body with any gzip or deflate Content-Encoding undone. */
+    public byte[] decodedBody() throws IOException {
+        String encoding = headers.getOrDefault("Content-Encoding", "identity");
+        if (encoding.equalsIgnoreCase("identity")) {
+            return body;
+        }
+        InputStream in = new ByteArrayInputStream(body);
+        if (encoding.equalsIgnoreCase("gzip")) {
+            in = new GZIPInputStream(in);
+        } else if (encoding.equalsIgnoreCase("deflate")) {
+            in = new InflaterInputStream(in);
+        } else {
+            throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+        try (InputStream decoded = in) {
+            return decoded.readAllBytes();
+        }
+    }
+
+    /** Writes the head and then the body, without copying the body into a combined array. */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(headBytes());
+        out.write(body);
+        out.flush();
+    }
+
+    /** Head and body for a gathering channel write; the body buffer shares the body array. */
+    public ByteBuffer[] toBuffers() {
+        return new ByteBuffer[] { ByteBuffer.wrap(headBytes()), ByteBuffer.wrap(body) };
+    }
+
+    private byte[] headBytes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        if (stream == null) {
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
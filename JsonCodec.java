@@ -0,0 +1,699 @@
+import java.util.*;
+
+/**
+ * Small JSON reader and writer shared by the server and both clients.
+ *
+ * The reader is a single-pass pull parser over a CharSequence: it never splits or copies
+ * the input, reuses String instances for member names it has seen before, and parses
+ * numbers without building an intermediate String where the value fits a double exactly.
+ * The writer appends to a StringBuilder with correct escaping.
+ */
+public final class JsonCodec {
+    private JsonCodec() {
+    }
+
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END }
+
+    /** Parses one object into a map that keeps member order; numbers become Long or Double. */
+    public static Map<String, Object> parseObject(CharSequence json) {
+        Reader reader = new Reader(json);
+        Map<String, Object> map = reader.readObject();
+        reader.expectEnd();
+        return map;
+    }
+
+    /** Parses an array of objects, as returned by a GET. */
+    public static List<Map<String, Object>> parseArray(CharSequence json) {
+        Reader reader = new Reader(json);
+        List<Map<String, Object>> list = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(reader.readObject());
+        }
+        reader.endArray();
+        reader.expectEnd();
+        return list;
+    }
+
+    /** Encodes a flat map; String values are quoted, Number and Boolean values are not. */
+    public static String toJSON(Map<String, ?> map) {
+        StringBuilder sb = new StringBuilder();
+        new Writer(sb).object(map);
+        return sb.toString();
+    }
+
+    /** True if the text is a number in JSON syntax, so it can be written without quotes. */
+    public static boolean isNumber(CharSequence s) {
+        int i = 0;
+        int n = s.length();
+        if (i < n && s.charAt(i) == '-') {
+            i++;
+        }
+        if (i >= n) {
+            return false;
+        }
+        if (s.charAt(i) == '0') {
+            i++;
+        } else if (isDigit(s.charAt(i))) {
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+            }
+        } else {
+            return false;
+        }
+        if (i < n && s.charAt(i) == '.') {
+            i++;
+            int digits = i;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == digits) {
+                return false;
+            }
+        }
+        if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            int digits = i;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == digits) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Pull parser. Call peek() to see what comes next and the matching next/begin/end
+     * method to consume it; malformed input raises IllegalArgumentException with the offset.
+     */
+    public static final class Reader {
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        // Member names seen by any reader; racy but safe, since Strings are immutable
+        private static final String[] nameCache = new String[512];
+
+        private CharSequence in;
+        private int pos;
+        // Per container: true once the first element has been read, so a comma is required
+        private final boolean[] hasElements = new boolean[16];
+        private final boolean[] inObject = new boolean[16];
+        private int depth;
+        private boolean expectValue; // a name has been read, its value comes next
+        private StringBuilder scratch;
+
+        public Reader(CharSequence in) {
+            this.in = in;
+        }
+
+        /** Points the reader at new input so one instance can parse many documents. */
+        public Reader reset(CharSequence in) {
+            this.in = in;
+            this.pos = 0;
+            this.depth = 0;
+            this.expectValue = false;
+            return this;
+        }
+
+        public int position() {
+            return pos;
+        }
+
+        public Token peek() {
+            skipWhitespace();
+            if (pos >= in.length()) {
+                return Token.END;
+            }
+            char c = in.charAt(pos);
+            if (depth > 0 && !expectValue && (c == '}' || c == ']')) {
+                return c == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+            }
+            if (depth > 0 && !expectValue && hasElements[depth - 1]) {
+                if (c != ',') {
+                    throw error("Expected ','");
+                }
+                pos++;
+                skipWhitespace();
+                if (pos >= in.length()) {
+                    throw error("Unexpected end of input");
+                }
+                c = in.charAt(pos);
+                hasElements[depth - 1] = false; // comma consumed; the element follows
+            }
+            if (depth > 0 && inObject[depth - 1] && !expectValue) {
+                if (c != '"') {
+                    throw error("Expected member name");
+                }
+                return Token.NAME;
+            }
+            switch (c) {
+                case '{': return Token.BEGIN_OBJECT;
+                case '[': return Token.BEGIN_ARRAY;
+                case '"': return Token.STRING;
+                case 't': case 'f': return Token.BOOLEAN;
+                case 'n': return Token.NULL;
+                default:
+                    if (c == '-' || isDigit(c)) {
+                        return Token.NUMBER;
+                    }
+                    throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        public boolean hasNext() {
+            Token token = peek();
+            return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END;
+        }
+
+        public void beginObject() {
+            expect(Token.BEGIN_OBJECT);
+            open(true);
+        }
+
+        public void endObject() {
+            expect(Token.END_OBJECT);
+            close();
+        }
+
+        public void beginArray() {
+            expect(Token.BEGIN_ARRAY);
+            open(false);
+        }
+
+        public void endArray() {
+            expect(Token.END_ARRAY);
+            close();
+        }
+
+        public String nextName() {
+            expect(Token.NAME);
+            int start = ++pos;
+            int hash = 0;
+            while (pos < in.length()) {
+                char c = in.charAt(pos);
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    // Escaped names are rare; decode them the slow way
+                    pos = start - 1;
+                    String name = readString();
+                    expectColon();
+                    return name;
+                }
+                hash = 31 * hash + c;
+                pos++;
+            }
+            if (pos >= in.length()) {
+                throw error("Unterminated name");
+            }
+            int end = pos++;
+            String name = cachedName(hash, start, end);
+            expectColon();
+            return name;
+        }
+
+        public String nextString() {
+            Token token = peek();
+            if (token == Token.NUMBER) {
+                int start = pos;
+                skipNumber();
+                valueConsumed();
+                return in.subSequence(start, pos).toString();
+            }
+            expect(Token.STRING);
+            String value = readString();
+            valueConsumed();
+            return value;
+        }
+
+        /**
+         * Parses the number in place; falls back to Double.parseDouble only for long or exponent
+         * forms. Numbers outside the RFC 8259 grammar, such as "-", "01", "1." or ".5", are rejected.
+         */
+        public double nextDouble() {
+            expect(Token.NUMBER);
+            int start = pos;
+            boolean negative = in.charAt(pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            if (pos < in.length() && in.charAt(pos) == '0') {
+                pos++;
+                digits++; // a leading zero stands alone
+            } else {
+                while (pos < in.length() && isDigit(in.charAt(pos))) {
+                    mantissa = mantissa * 10 + (in.charAt(pos++) - '0');
+                    digits++;
+                }
+            }
+            boolean malformed = digits == 0;
+            int fractionDigits = 0;
+            if (!malformed && pos < in.length() && in.charAt(pos) == '.') {
+                pos++;
+                while (pos < in.length() && isDigit(in.charAt(pos))) {
+                    mantissa = mantissa * 10 + (in.charAt(pos++) - '0');
+                    fractionDigits++;
+                }
+                malformed = fractionDigits == 0;
+                digits += fractionDigits;
+            }
+            // An exponent, or anything else number-like left over, such as the 1 of "01"
+            boolean more = pos < in.length() && isNumberPart(in.charAt(pos));
+            if (malformed || more || digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+                // Rare or malformed forms: skipNumber checks the grammar
+                pos = start;
+                skipNumber();
+                valueConsumed();
+                return Double.parseDouble(in.subSequence(start, pos).toString());
+            }
+            valueConsumed();
+            // Both operands are exact doubles here, so a single division is correctly rounded
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+
+        public long nextLong() {
+            double value = nextDouble();
+            if (value != Math.rint(value)) {
+                throw error("Expected an integer");
+            }
+            return (long) value;
+        }
+
+        public boolean nextBoolean() {
+            expect(Token.BOOLEAN);
+            boolean value = in.charAt(pos) == 't';
+            expectLiteral(value ? "true" : "false");
+            valueConsumed();
+            return value;
+        }
+
+        public void nextNull() {
+            expect(Token.NULL);
+            expectLiteral("null");
+            valueConsumed();
+        }
+
+        /** Reads any value: String, Long, Double, Boolean, null, Map or List. */
+        public Object readValue() {
+            switch (peek()) {
+                case STRING:
+                    return nextString();
+                case NUMBER:
+                    int start = pos;
+                    double value = nextDouble();
+                    boolean integral = true;
+                    for (int i = start; i < pos; i++) {
+                        char c = in.charAt(i);
+                        if (c == '.' || c == 'e' || c == 'E') {
+                            integral = false;
+                        }
+                    }
+                    return integral && Math.abs(value) < 1e15 ? (Object) (long) value : (Object) value;
+                case BOOLEAN:
+                    return nextBoolean();
+                case NULL:
+                    nextNull();
+                    return null;
+                case BEGIN_OBJECT:
+                    return readObject();
+                case BEGIN_ARRAY:
+                    List<Object> list = new ArrayList<>();
+                    beginArray();
+                    while (hasNext()) {
+                        list.add(readValue());
+                    }
+                    endArray();
+                    return list;
+                default:
+                    throw error("Expected a value");
+            }
+        }
+
+        public Map<String, Object> readObject() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            beginObject();
+            while (hasNext()) {
+                String name = nextName();
+                map.put(name, readValue());
+            }
+            endObject();
+            return map;
+        }
+
+        /** Skips the next value; strings and numbers are skipped without allocating. */
+        public void skipValue() {
+            Token token = peek();
+            if (token == Token.STRING) {
+                pos++;
+                while (pos < in.length() && in.charAt(pos) != '"') {
+                    pos += in.charAt(pos) == '\\' ? 2 : 1;
+                }
+                if (pos >= in.length()) {
+                    throw error("Unterminated string");
+                }
+                pos++;
+                valueConsumed();
+            } else if (token == Token.NUMBER) {
+                skipNumber();
+                valueConsumed();
+            } else {
+                readValue();
+            }
+        }
+
+        public void expectEnd() {
+            if (peek() != Token.END) {
+                throw error("Trailing data");
+            }
+        }
+
+        private void open(boolean object) {
+            if (depth == hasElements.length) {
+                throw error("Nesting too deep");
+            }
+            pos++;
+            hasElements[depth] = false;
+            inObject[depth] = object;
+            depth++;
+            expectValue = false;
+        }
+
+        private void close() {
+            pos++;
+            depth--;
+            valueConsumed();
+        }
+
+        private void valueConsumed() {
+            expectValue = false;
+            if (depth > 0) {
+                hasElements[depth - 1] = true;
+            }
+        }
+
+        private void expect(Token token) {
+            Token actual = peek();
+            if (actual != token) {
+                throw error("Expected " + token + " but found " + actual);
+            }
+        }
+
+        private void expectColon() {
+            skipWhitespace();
+            if (pos >= in.length() || in.charAt(pos) != ':') {
+                throw error("Expected ':'");
+            }
+            pos++;
+            expectValue = true;
+        }
+
+        private void expectLiteral(String literal) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (pos >= in.length() || in.charAt(pos) != literal.charAt(i)) {
+                    throw error("Expected " + literal);
+                }
+                pos++;
+            }
+        }
+
+        // Moves past a number: -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?, and nothing number-like after it
+        private void skipNumber() {
+            if (pos < in.length() && in.charAt(pos) == '-') {
+                pos++;
+            }
+            if (pos < in.length() && in.charAt(pos) == '0') {
+                pos++;
+            } else if (skipDigits() == 0) {
+                throw error("Malformed number");
+            }
+            if (pos < in.length() && in.charAt(pos) == '.') {
+                pos++;
+                if (skipDigits() == 0) {
+                    throw error("Malformed number");
+                }
+            }
+            if (pos < in.length() && (in.charAt(pos) == 'e' || in.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < in.length() && (in.charAt(pos) == '+' || in.charAt(pos) == '-')) {
+                    pos++;
+                }
+                if (skipDigits() == 0) {
+                    throw error("Malformed number");
+                }
+            }
+            if (pos < in.length() && isNumberPart(in.charAt(pos))) {
+                throw error("Malformed number");
+            }
+        }
+
+        private static boolean isNumberPart(char c) {
+            return isDigit(c) || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+        }
+
+        private int skipDigits() {
+            int start = pos;
+            while (pos < in.length() && isDigit(in.charAt(pos))) {
+                pos++;
+            }
+            return pos - start;
+        }
+
+        // Decodes a quoted string starting at pos, leaving pos after the closing quote
+        private String readString() {
+            int start = ++pos;
+            while (pos < in.length()) {
+                char c = in.charAt(pos);
+                if (c == '"') {
+                    return in.subSequence(start, pos++).toString();
+                }
+                if (c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            if (scratch == null) {
+                scratch = new StringBuilder();
+            }
+            scratch.setLength(0);
+            scratch.append(in, start, pos);
+            while (pos < in.length()) {
+                char c = in.charAt(pos++);
+                if (c == '"') {
+                    return scratch.toString();
+                }
+                if (c != '\\') {
+                    scratch.append(c);
+                    continue;
+                }
+                if (pos >= in.length()) {
+                    break;
+                }
+                char escaped = in.charAt(pos++);
+                switch (escaped) {
+                    case 'b': scratch.append('\b'); break;
+                    case 'f': scratch.append('\f'); break;
+                    case 'n': scratch.append('\n'); break;
+                    case 'r': scratch.append('\r'); break;
+                    case 't': scratch.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > in.length()) {
+                            throw error("Bad unicode escape");
+                        }
+                        scratch.append((char) Integer.parseInt(in.subSequence(pos, pos + 4).toString(), 16));
+                        pos += 4;
+                        break;
+                    default: scratch.append(escaped);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private String cachedName(int hash, int start, int end) {
+            int slot = (hash ^ (hash >>> 16)) & (nameCache.length - 1);
+            String cached = nameCache[slot];
+            if (cached != null && cached.length() == end - start) {
+                boolean same = true;
+                for (int i = 0; i < cached.length(); i++) {
+                    if (cached.charAt(i) != in.charAt(start + i)) {
+                        same = false;
+                        break;
+                    }
+                }
+                if (same) {
+                    return cached;
+                }
+            }
+            String name = in.subSequence(start, end).toString().intern();
+            nameCache[slot] = name;
+            return name;
+        }
+
+        private void skipWhitespace() {
+            while (pos < in.length()) {
+                char c = in.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    break;
+                }
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at offset " + pos);
+        }
+    }
+
+    /** Streaming writer; commas between members and elements are inserted automatically. */
+    public static final class Writer {
+        private final StringBuilder out;
+        private boolean needsComma;
+
+        public Writer(StringBuilder out) {
+            this.out = out;
+        }
+
+        public Writer beginObject() {
+            separate();
+            out.append('{');
+            needsComma = false;
+            return this;
+        }
+
+        public Writer endObject() {
+            out.append('}');
+            needsComma = true;
+            return this;
+        }
+
+        public Writer beginArray() {
+            separate();
+            out.append('[');
+            needsComma = false;
+            return this;
+        }
+
+        public Writer endArray() {
+            out.append(']');
+            needsComma = true;
+            return this;
+        }
+
+        public Writer name(String name) {
+            separate();
+            quote(name);
+            out.append(':');
+            needsComma = false;
+            return this;
+        }
+
+        public Writer value(String value) {
+            separate();
+            if (value == null) {
+                out.append("null");
+            } else {
+                quote(value);
+            }
+            needsComma = true;
+            return this;
+        }
+
+        public Writer value(double value) {
+            separate();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                out.append("null");
+            } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            needsComma = true;
+            return this;
+        }
+
+        public Writer value(long value) {
+            separate();
+            out.append(value);
+            needsComma = true;
+            return this;
+        }
+
+        public Writer value(boolean value) {
+            separate();
+            out.append(value);
+            needsComma = true;
+            return this;
+        }
+
+        /** Writes text that is already a valid JSON number, e.g. as received, without quotes. */
+        public Writer rawNumber(CharSequence number) {
+            separate();
+            out.append(number);
+            needsComma = true;
+            return this;
+        }
+
+        /** Writes a flat map, choosing the representation from each value's type. */
+        public Writer object(Map<String, ?> map) {
+            beginObject();
+            for (Map.Entry<String, ?> entry : map.entrySet()) {
+                name(entry.getKey());
+                Object value = entry.getValue();
+                if (value instanceof Long || value instanceof Integer) {
+                    value(((Number) value).longValue());
+                } else if (value instanceof Number) {
+                    value(((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    value((boolean) (Boolean) value);
+                } else {
+                    value(value == null ? null : value.toString());
+                }
+            }
+            return endObject();
+        }
+
+        private void separate() {
+            if (needsComma) {
+                out.append(',');
+                needsComma = false;
+            }
+        }
+
+        private void quote(String s) {
+            out.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    case '\b': out.append("\\b"); break;
+                    case '\f': out.append("\\f"); break;
+                    default:
+                        if (c < 0x20) {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                }
+            }
+            out.append('"');
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Measures time and heap allocation per parsed station record for the old split-based
+ * parser and for JsonCodec. Run with: java JsonCodecBenchmark [records] [rounds]
+ */
+public class JsonCodecBenchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        List<String> lines = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            Map<String, Object> station = new LinkedHashMap<>();
+            station.put("id", "IDS" + (60000 + i));
+            station.put("name", "Station " + i + ", Adelaide (West Terrace /  ngayirdapira)");
+            station.put("state", "SA");
+            station.put("time_zone", "CST");
+            station.put("lat", -34.9);
+            station.put("lon", 138.6);
+            station.put("local_date_time", "15/04:00pm");
+            station.put("local_date_time_full", 20230715160000L);
+            station.put("air_temp", 13.3);
+            station.put("apparent_t", 9.5);
+            station.put("cloud", "Partly cloudy");
+            station.put("dewpt", 5.7);
+            station.put("press", 1023.9);
+            station.put("rel_hum", 60L);
+            station.put("wind_dir", "S");
+            station.put("wind_spd_kmh", 15L);
+            station.put("wind_spd_kt", 8L);
+            station.put("clientAddress", "127.0.0.1");
+            lines.add(JsonCodec.toJSON(station));
+        }
+
+        // Warm up all variants before measuring
+        for (int i = 0; i < 5; i++) {
+            run("legacy split parser", lines, JsonCodecBenchmark::legacyParse, false);
+            run("JsonCodec map", lines, JsonCodec::parseObject, false);
+            run("JsonCodec streaming", lines, JsonCodecBenchmark::streamingParse, false);
+        }
+        for (int i = 0; i < rounds; i++) {
+            boolean print = i == rounds - 1;
+            run("legacy split parser", lines, JsonCodecBenchmark::legacyParse, print);
+            run("JsonCodec map", lines, JsonCodec::parseObject, print);
+            run("JsonCodec streaming", lines, JsonCodecBenchmark::streamingParse, print);
+        }
+    }
+
+    private interface Parser {
+        Object parse(String line);
+    }
+
+    private static long sink;
+
+    private static void run(String name, List<String> lines, Parser parser, boolean print) {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (String line : lines) {
+            Object result = parser.parse(line);
+            sink += result == null ? 0 : result.hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        if (print) {
+            System.out.printf("%-22s %8.0f ns/record %8.0f bytes/record%n",
+                    name, (double) elapsed / lines.size(), (double) allocated / lines.size());
+        }
+    }
+
+    private static final JsonCodec.Reader reader = new JsonCodec.Reader("");
+
+    // Reads every field into primitives and interned names without building a map
+    private static Object streamingParse(String line) {
+        reader.reset(line);
+        double total = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonCodec.Token.NUMBER) {
+                total += reader.nextDouble();
+            } else {
+                total += name.length();
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return total;
+    }
+
+    // The parser the server used before JsonCodec, kept here as the baseline
+    private static Object legacyParse(String jsonString) {
+        Map<String, String> dataMap = new HashMap<>();
+        jsonString = jsonString.trim();
+        if (jsonString.startsWith("{") && jsonString.endsWith("}")) {
+            jsonString = jsonString.substring(1, jsonString.length() - 1);
+            String[] fields = jsonString.split(",");
+            for (String field : fields) {
+                String[] keyValue = field.split(":", 2);
+                if (keyValue.length == 2) {
+                    String key = keyValue[0].trim().replace("\"", "");
+                    String value = keyValue[1].trim().replace("\"", "");
+                    dataMap.put(key, value);
+                }
+            }
+            return dataMap;
+        }
+        return null;
+    }
+}
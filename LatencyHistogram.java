@@ -0,0 +1,91 @@
+/**
+ * Latency histogram in the style of HdrHistogram: values up to 2^SUB_BUCKET_BITS are counted
+ * exactly, larger ones in buckets that double in width with each power of two, so every
+ * recorded value is kept to within 1% at a fixed size and recording is an array increment.
+ * Values are in microseconds. Not thread safe; keep one per thread and add them up.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int HALF_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+    private static final long MAX_VALUE = 3_600_000_000L; // an hour; larger values are clamped
+
+    private final long[] counts = new long[indexOf(MAX_VALUE) + 1];
+    private long totalCount;
+    private long totalValue;
+    private long maxValue;
+
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(value, MAX_VALUE));
+        counts[indexOf(clamped)]++;
+        totalCount++;
+        totalValue += clamped;
+        maxValue = Math.max(maxValue, clamped);
+    }
+
+    /**
+     * Records a value measured by a caller that waits for each response before sending the
+     * next request, and expected to send one every expectedInterval. A response that took
+     * longer held back the requests that should have been sent meanwhile, which never got
+     * measured (coordinated omission); they are filled in with the latencies they would have
+     * seen, as HdrHistogram's recordValueWithExpectedInterval does.
+     */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+    }
+
+    /** The value that the given percentage (0-100) of recorded values are at or below. */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    // The first 2 * HALF_COUNT buckets hold one value each; after that every bucket of the
+    // next HALF_COUNT is twice as wide as those before it
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        int shift = Math.max(0, index / HALF_COUNT - 1);
+        long subBucket = index - (long) shift * HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for capacity planning. Simulates many content servers, each PUTting its own
+ * stations, and many GET clients in one JVM against an AggregationServer on this machine.
+ * Every simulated client keeps its own keep-alive connection, and a fixed set of driver
+ * threads takes turns sending for them.
+ *
+ * Two schedules:
+ *  - open (default): each client sends at fixed intervals whether or not earlier requests
+ *    were answered, as independent clients do. Latency is measured from when a request was
+ *    due, so time spent waiting behind a slow response counts.
+ *  - closed: each client sends its next request an interval after the previous response.
+ *    Latency is measured from the send, and the requests a slow response held back are
+ *    filled in (coordinated omission correction).
+ * Reports throughput and p50/p90/p99/p99.9/max per method. For open schedules it also shows
+ * service time (from the actual send); the gap between the two is queueing the client saw.
+ * All simulated clients share the loopback address, so leave the server's --rate-limit off;
+ * requests it sheds under overload show up as 503 in the status counts.
+ *
+ * Run with: java LoadGenerator [server] [port] [--content-servers=1000] [--clients=1000]
+ *     [--stations=10000] [--put-rate=2000] [--get-rate=500] [--schedule=open|closed]
+ *     [--threads=64] [--seconds=30] [--warmup=5] [--get-path=/weather.json]
+ */
+public class LoadGenerator {
+    private static final int IO_TIMEOUT = 30 * 1000;
+
+    private static int contentServers = 1000;
+    private static int getClients = 1000;
+    private static int stations = 10000;
+    private static double putRate = 2000;
+    private static double getRate = 500;
+    private static boolean open = true;
+    private static int threads = 64;
+    private static int seconds = 30;
+    private static int warmup = 5;
+    private static String getPath = "/weather.json";
+
+    public static void main(String[] args) throws Exception {
+        String server = args.length > 0 && !args[0].startsWith("--") ? args[0] : "localhost";
+        int port = args.length > 1 && !args[1].startsWith("--") ? Integer.parseInt(args[1]) : 4567;
+        for (String arg : args) {
+            if (arg.startsWith("--content-servers=")) {
+                contentServers = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--clients=")) {
+                getClients = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--stations=")) {
+                stations = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--put-rate=")) {
+                putRate = Double.parseDouble(value(arg));
+            } else if (arg.startsWith("--get-rate=")) {
+                getRate = Double.parseDouble(value(arg));
+            } else if (arg.startsWith("--schedule=")) {
+                open = !"closed".equals(value(arg));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--get-path=")) {
+                getPath = value(arg);
+            }
+        }
+        // Generating this much load across a network would measure the network, and could
+        // overload a server that is not ours to test
+        if (!InetAddress.getByName(server).isLoopbackAddress()) {
+            System.out.println(server + " is not a loopback address; run against a local server");
+            return;
+        }
+        if (putRate <= 0) {
+            contentServers = 0;
+        }
+        if (getRate <= 0) {
+            getClients = 0;
+        }
+        if (contentServers + getClients == 0) {
+            System.out.println("Nothing to send: both rates are 0");
+            return;
+        }
+
+        List<SimulatedClient> clients = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < contentServers; i++) {
+            clients.add(new SimulatedClient(true, i, contentServers / putRate, random));
+        }
+        for (int i = 0; i < getClients; i++) {
+            clients.add(new SimulatedClient(false, i, getClients / getRate, random));
+        }
+        Collections.shuffle(clients, random);
+        int driverCount = Math.min(threads, clients.size());
+        System.out.printf("%s schedule: %d content servers, %d stations, %.0f PUT/s; %d GET clients, %.0f GET/s;"
+                        + " %d driver threads; %ds warmup, %ds measured%n", open ? "Open" : "Closed",
+                contentServers, stations, putRate, getClients, getRate, driverCount, warmup, seconds);
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(driverCount);
+        List<Future<Driver>> drivers = new ArrayList<>();
+        for (int d = 0; d < driverCount; d++) {
+            Driver driver = new Driver(server, port, start, measureFrom, end);
+            for (int i = d; i < clients.size(); i += driverCount) {
+                driver.add(clients.get(i));
+            }
+            drivers.add(executor.submit(driver, driver));
+        }
+        executor.shutdown();
+
+        Results put = new Results();
+        Results get = new Results();
+        for (Future<Driver> driver : drivers) {
+            put.add(driver.get().put);
+            get.add(driver.get().get);
+        }
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+
+        System.out.printf("%n%-4s %-9s %10s %10s %8s %9s %9s %9s %9s %9s %9s%n", "", "latency", "samples",
+                "per sec", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        put.print("PUT", seconds);
+        get.print("GET", seconds);
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    /** Latencies and outcomes of one method, from one driver or added up over all of them. */
+    private static final class Results {
+        final LatencyHistogram response = new LatencyHistogram(); // from when the request was due
+        final LatencyHistogram service = new LatencyHistogram();  // from the actual send
+        final Map<String, Long> statuses = new TreeMap<>();
+        long completed;
+        long errors;
+
+        void add(Results other) {
+            response.add(other.response);
+            service.add(other.service);
+            other.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+            completed += other.completed;
+            errors += other.errors;
+        }
+
+        void print(String method, int seconds) {
+            if (completed + errors == 0) {
+                return;
+            }
+            printRow(method, open ? "response" : "corrected", response, seconds);
+            printRow("", "service", service, seconds);
+            if (!statuses.isEmpty()) {
+                System.out.println("     statuses " + statuses);
+            }
+        }
+
+        private void printRow(String method, String latency, LatencyHistogram histogram, int seconds) {
+            System.out.printf("%-4s %-9s %10d %10.0f %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", method, latency,
+                    histogram.getTotalCount(), (double) completed / seconds, errors, histogram.getMean() / 1000,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+        }
+    }
+
+    /**
+     * One content server or GET client: its connection, Lamport clock and when its next
+     * request is due. Content servers own stations id % contentServers and update them in turn.
+     */
+    private static final class SimulatedClient {
+        final boolean contentServer;
+        final int id;
+        final long interval; // nanoseconds between requests
+        long due;
+        long sequence;
+        long lamportClock;
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+
+        SimulatedClient(boolean contentServer, int id, double intervalSeconds, Random random) {
+            this.contentServer = contentServer;
+            this.id = id;
+            this.interval = Math.max(1, (long) (intervalSeconds * 1e9));
+            // Spread the first requests over one interval so clients do not send in lockstep
+            this.due = (long) (random.nextDouble() * interval);
+        }
+
+        HttpResponse send(String server, int port) throws IOException {
+            if (socket == null) {
+                socket = new Socket(server, port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(IO_TIMEOUT);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+            lamportClock++;
+            byte[] body = contentServer ? nextObservation() : new byte[0];
+            String request = (contentServer ? "PUT /weather.json" : "GET " + getPath) + " HTTP/1.1\r\n" +
+                    "Host: " + server + "\r\n" +
+                    (contentServer ? "User-Agent: ATOMClient/1/0\r\n" +
+                            "Content-Type: application/json\r\n" +
+                            "Content-Length: " + body.length + "\r\n" : "") +
+                    "Lamport-Clock: " + lamportClock + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n";
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body);
+            out.flush();
+            HttpResponse response = HttpResponse.read(in);
+            if (response == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            String serverClock = response.getHeader("Lamport-Clock");
+            if (serverClock != null) {
+                lamportClock = Math.max(lamportClock, Long.parseLong(serverClock)) + 1;
+            }
+            if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+                close();
+            }
+            return response;
+        }
+
+        private byte[] nextObservation() {
+            int owned = (stations - id + contentServers - 1) / contentServers;
+            long station = id + (sequence % Math.max(1, owned)) * contentServers;
+            sequence++;
+            String json = "{\"id\":\"LOAD" + station + "\",\"name\":\"Load station " + station + "\","
+                    + "\"state\":\"" + (station % 2 == 0 ? "SA" : "VIC") + "\",\"time_zone\":\"CST\","
+                    + "\"lat\":" + (-34.9 - station % 100 * 0.01) + ",\"lon\":" + (138.6 + station % 100 * 0.01) + ","
+                    + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":" + (sequence % 40) + ","
+                    + "\"apparent_t\":9.5,\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,"
+                    + "\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+            return json.getBytes(StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                socket = null;
+            }
+        }
+    }
+
+    /** Sends for its clients in order of when they are due, recording requests due in the measured window. */
+    private static final class Driver implements Runnable {
+        final String server;
+        final int port;
+        final long start;
+        final long measureFrom;
+        final long end;
+        final PriorityQueue<SimulatedClient> schedule = new PriorityQueue<>(Comparator.comparingLong(c -> c.due));
+        final Results put = new Results();
+        final Results get = new Results();
+
+        Driver(String server, int port, long start, long measureFrom, long end) {
+            this.server = server;
+            this.port = port;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        void add(SimulatedClient client) {
+            client.due += start;
+            schedule.add(client);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                SimulatedClient client = schedule.poll();
+                if (client.due >= end) {
+                    return;
+                }
+                long now;
+                while ((now = System.nanoTime()) < client.due) {
+                    LockSupport.parkNanos(client.due - now);
+                }
+                Results results = client.contentServer ? put : get;
+                long sent = System.nanoTime();
+                String status = null;
+                try {
+                    status = client.send(server, port).status;
+                } catch (IOException e) {
+                    client.close(); // reconnect on its next request
+                }
+                long done = System.nanoTime();
+                if (client.due >= measureFrom) {
+                    if (status == null) {
+                        results.errors++;
+                    } else {
+                        results.completed++;
+                        results.statuses.merge(status.substring(0, Math.min(3, status.length())), 1L, Long::sum);
+                        long serviceTime = (done - sent) / 1000;
+                        results.service.record(serviceTime);
+                        if (open) {
+                            results.response.record((done - client.due) / 1000);
+                        } else {
+                            results.response.recordCorrected(serviceTime, client.interval / 1000);
+                        }
+                    }
+                }
+                // Open: the next request is due on schedule, even if that is already past.
+                // Closed: it waits for this response.
+                client.due = open ? client.due + client.interval : done + client.interval;
+                schedule.add(client);
+            }
+        }
+    }
+}
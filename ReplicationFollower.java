@@ -0,0 +1,155 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Backup side of replication. Follows the primary's GET /replication stream, which carries
+ * a snapshot and then every change log entry in Lamport clock order, and hands each one to
+ * the server to apply. After a disconnect it resumes from the last event id, or takes a new
+ * snapshot if the primary's log no longer reaches back that far or the primary changed.
+ *
+ * Primaries are tried in list order, so the other backups of a failed primary can list the
+ * backup that will be promoted after it. With promoteAfter set, the follower promotes its
+ * own server once no primary has been reachable for that long.
+ */
+public class ReplicationFollower {
+    private static final int READ_TIMEOUT = 30 * 1000; // the primary pings idle streams every 15 seconds
+
+    private final ServerList primaries;
+    private final long promoteAfter;
+    private final Consumer<List<StationRecord>> onSnapshot;
+    private final BiConsumer<String, StationRecord> onChange;
+    private final LongConsumer onClock;
+    private final Runnable onPromote;
+    private volatile boolean stopped;
+    private volatile Socket socket;
+    private volatile long lastContact = System.currentTimeMillis();
+
+    /**
+     * onChange gets a station id and its new record, or null if it expired, and onClock the
+     * primary's Lamport clock after each applied change; promoteAfter is in milliseconds, 0 to
+     * only promote by request.
+     */
+    public ReplicationFollower(ServerList primaries, long promoteAfter, Consumer<List<StationRecord>> onSnapshot,
+                               BiConsumer<String, StationRecord> onChange, LongConsumer onClock, Runnable onPromote) {
+        this.primaries = primaries;
+        this.promoteAfter = promoteAfter;
+        this.onSnapshot = onSnapshot;
+        this.onChange = onChange;
+        this.onClock = onClock;
+        this.onPromote = onPromote;
+    }
+
+    public void start() {
+        Thread follower = new Thread(this::followLoop, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /** Stops following, as on promotion; the connection to the primary is closed. */
+    public void stop() {
+        stopped = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void followLoop() {
+        String lastEventId = null;
+        while (!stopped) {
+            ServerList.Server primary = primaries.current();
+            boolean connected = false;
+            try (Socket connection = new Socket(primary.host, primary.port)) {
+                socket = connection;
+                connection.setSoTimeout(READ_TIMEOUT);
+                String request = "GET /replication HTTP/1.1\r\n" +
+                        "Host: " + primary + "\r\n" +
+                        "Accept: text/event-stream\r\n" +
+                        (lastEventId != null ? "Last-Event-ID: " + lastEventId + "\r\n" : "") +
+                        "\r\n";
+                OutputStream out = connection.getOutputStream();
+                out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                HttpResponse head = HttpResponse.readHead(in);
+                if (head == null || !head.status.startsWith("200")) {
+                    // Not a primary, perhaps a backup that has not been promoted yet
+                    throw new IOException(primary + " is not accepting replicas: "
+                            + (head == null ? "no response" : head.status));
+                }
+                System.out.println("Replicating from " + primary);
+                connected = true;
+                EventStreamReader events = new EventStreamReader(in, lastEventId);
+                while (!stopped && events.next()) {
+                    apply(events.getEvent(), events.getData());
+                    if (events.getLastEventId() != null && !events.getLastEventId().equals(lastEventId)) {
+                        lastEventId = events.getLastEventId();
+                        // Event ids are epoch:lamport
+                        onClock.accept(Long.parseLong(lastEventId.substring(lastEventId.indexOf(':') + 1)));
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("Replication stream from " + primary + " went quiet");
+            } catch (IOException | IllegalArgumentException e) {
+                if (!stopped) {
+                    System.out.println("Replication from " + primary + " failed: " + e.getMessage());
+                }
+            } finally {
+                socket = null;
+                if (connected) {
+                    lastContact = System.currentTimeMillis(); // the primary was there until now
+                }
+            }
+            if (stopped) {
+                return;
+            }
+            primaries.failed(primary);
+            if (promoteAfter > 0 && System.currentTimeMillis() - lastContact >= promoteAfter) {
+                System.out.println("No primary reachable for " + promoteAfter / 1000 + " seconds, promoting");
+                stopped = true;
+                onPromote.run();
+                return;
+            }
+            try {
+                Thread.sleep(1000); // Wait before retrying
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void apply(String event, String data) {
+        switch (event) {
+            case "snapshot":
+                List<StationRecord> stations = StationRecord.parseBatch(data);
+                if (stations == null) {
+                    throw new IllegalArgumentException("Invalid snapshot");
+                }
+                onSnapshot.accept(stations);
+                break;
+            case "upsert":
+                StationRecord record = StationRecord.parse(data);
+                if (record == null) {
+                    throw new IllegalArgumentException("Invalid station: " + data);
+                }
+                onChange.accept(record.getId(), record);
+                break;
+            case "delete":
+                onChange.accept((String) new JsonCodec.Reader(data).readValue(), null);
+                break;
+            default:
+                break;
+        }
+    }
+}
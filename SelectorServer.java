@@ -0,0 +1,319 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking server core: one selector thread does all socket I/O and hands complete
+ * requests to a small worker pool, so thousands of idle or slow connections cost a
+ * buffer each instead of a thread each.
+ *
+ * Connections are kept alive between requests. Each connection has at most one request
+ * with a worker at a time; pipelined requests wait in its input buffer and are dispatched
+ * in order once the previous response has been written.
+ *
+ * Requests wait for a worker in a bounded queue. When it is full, the selector thread answers
+ * the request itself with the overload response instead of letting the backlog grow.
+ *
+ * A streaming response keeps its connection for good: once the head is written, events
+ * sent to its sink from any thread are queued and written by the selector thread. A client
+ * that lets more than a few megabytes of events pile up is disconnected.
+ */
+public class SelectorServer {
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    private static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    private static final long MAX_PENDING_EVENTS = 4 * 1024 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final int idleTimeoutMillis;
+    private final int maxRequestsPerConnection;
+    private final Function<HttpRequest, HttpResponse> handler;
+    private final Supplier<HttpResponse> overloaded;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // Written by the selector thread only
+    private volatile int openConnections;
+    private volatile long acceptedConnections;
+
+    private static class Connection {
+        final SocketChannel channel;
+        final String clientAddress;
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        ByteBuffer[] out;
+        StreamSink stream;
+        boolean closeAfterWrite;
+        boolean busy;
+        int served;
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+        }
+    }
+
+    // Outlet of a streaming response; senders queue events and the selector thread writes them
+    private final class StreamSink implements EventSink {
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        StreamSink(SelectionKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean send(byte[] data) {
+            if (closed) {
+                return false;
+            }
+            if (pendingBytes.addAndGet(data.length) > MAX_PENDING_EVENTS) {
+                close(); // too slow to keep up; it can resume from its last event id
+                return false;
+            }
+            pending.add(ByteBuffer.wrap(data));
+            if (flushScheduled.compareAndSet(false, true)) {
+                selectorTasks.add(() -> {
+                    flushScheduled.set(false);
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                });
+                selector.wakeup();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            selectorTasks.add(() -> SelectorServer.this.close(key));
+            selector.wakeup();
+        }
+
+        // Writes queued events; returns true once nothing is left
+        boolean drain(SocketChannel channel) throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = pending.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                pending.poll();
+                pendingBytes.addAndGet(-buffer.capacity());
+            }
+            return true;
+        }
+    }
+
+    public SelectorServer(ServerSocketChannel serverChannel, int workerThreads, int maxQueued, int idleTimeoutMillis,
+                          int maxRequestsPerConnection, Function<HttpRequest, HttpResponse> handler,
+                          Supplier<HttpResponse> overloaded) throws IOException {
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)));
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.handler = handler;
+        this.overloaded = overloaded;
+    }
+
+    public void run() throws IOException {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        long lastIdleScan = System.currentTimeMillis();
+        while (true) {
+            selector.select(1000);
+            long now = System.currentTimeMillis();
+            if (now - lastIdleScan >= 1000) {
+                closeIdleConnections(now);
+                lastIdleScan = now;
+            }
+            Runnable task;
+            while ((task = selectorTasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+            openConnections++;
+            acceptedConnections++;
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections;
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections;
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.stream != null) {
+            // A streaming client has nothing more to say; only watch for it hanging up
+            connection.in.clear();
+            if (connection.channel.read(connection.in) < 0) {
+                close(key);
+            }
+            return;
+        }
+        if (!connection.in.hasRemaining()) {
+            if (connection.in.capacity() >= MAX_REQUEST_SIZE) {
+                close(key);
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(connection.in.capacity() * 2);
+            connection.in.flip();
+            larger.put(connection.in);
+            connection.in = larger;
+        }
+        if (connection.channel.read(connection.in) < 0) {
+            close(key);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        dispatchNext(key, connection);
+    }
+
+    // Hands the next buffered request to a worker, or goes back to reading if there is none
+    private void dispatchNext(SelectionKey key, Connection connection) {
+        connection.in.flip();
+        HttpRequest request = HttpRequest.parse(connection.in, connection.clientAddress);
+        connection.in.compact();
+        if (request == null) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        connection.served++;
+        boolean keepAlive = request.wantsKeepAlive() && connection.served < maxRequestsPerConnection;
+
+        // Stop reading while a worker owns the request; the response re-arms the key
+        connection.busy = true;
+        key.interestOps(0);
+        try {
+            workers.execute(() -> handle(key, connection, request, keepAlive));
+        } catch (RejectedExecutionException e) {
+            // No room in the queue: answer here, and the write re-arms the key as usual
+            connection.out = overloaded.get().connection(keepAlive, idleTimeoutMillis).toBuffers();
+            connection.closeAfterWrite = !keepAlive;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Runs on a worker; the selector thread writes the response
+    private void handle(SelectionKey key, Connection connection, HttpRequest request, boolean keepAlive) {
+        HttpResponse response;
+        try {
+            response = handler.apply(request);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            response = new HttpResponse("500 Internal Server Error", "");
+        }
+        Consumer<EventSink> onOpen = response.getStream();
+        boolean reuse = keepAlive && onOpen == null;
+        ByteBuffer[] out = response.connection(reuse, idleTimeoutMillis).toBuffers();
+        selectorTasks.add(() -> {
+            if (key.isValid()) {
+                connection.out = out;
+                connection.closeAfterWrite = !reuse && onOpen == null;
+                key.interestOps(SelectionKey.OP_WRITE);
+                if (onOpen != null) {
+                    connection.stream = new StreamSink(key);
+                    onOpen.accept(connection.stream);
+                }
+            } else if (onOpen != null) {
+                // The client left while the response was built; a closed sink lets the stream's owner forget it
+                StreamSink gone = new StreamSink(key);
+                gone.closed = true;
+                onOpen.accept(gone);
+            }
+        });
+        selector.wakeup();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.out != null) {
+            connection.channel.write(connection.out);
+            if (connection.out[connection.out.length - 1].hasRemaining()) {
+                return;
+            }
+            if (connection.closeAfterWrite) {
+                close(key);
+                return;
+            }
+            connection.out = null;
+        }
+        if (connection.stream != null) {
+            // Streaming connections stay busy, so the idle scan leaves them alone
+            key.interestOps(connection.stream.drain(connection.channel) ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            return;
+        }
+        connection.busy = false;
+        connection.lastActive = System.currentTimeMillis();
+        dispatchNext(key, connection);
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (!connection.busy && now - connection.lastActive > idleTimeoutMillis) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && ((Connection) key.attachment()).stream != null) {
+            ((Connection) key.attachment()).stream.closed = true;
+        }
+        key.cancel();
+        if (key.channel().isOpen() && key.attachment() instanceof Connection) {
+            openConnections--;
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
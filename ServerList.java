@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Servers a client can fail over between, given as "host[:port],host[:port],...". Clients
+ * keep using the server that last worked and move on to the next one when it fails or turns
+ * out to be a read-only backup.
+ */
+public class ServerList {
+    public static final class Server {
+        public final String host;
+        public final int port;
+
+        Server(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Server> servers = new ArrayList<>();
+    private int current;
+
+    /** Parses the list; entries without a port use defaultPort. */
+    public ServerList(String list, int defaultPort) {
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                servers.add(new Server(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+            } else {
+                servers.add(new Server(entry, defaultPort));
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers given");
+        }
+    }
+
+    public synchronized Server current() {
+        return servers.get(current);
+    }
+
+    public int size() {
+        return servers.size();
+    }
+
+    /** Moves on from a server that failed, unless another caller already did. */
+    public synchronized void failed(Server server) {
+        if (servers.get(current) == server) {
+            current = (current + 1) % servers.size();
+            if (servers.size() > 1) {
+                System.out.println("Failing over from " + server + " to " + servers.get(current));
+            }
+        }
+    }
+
+    /** Connects to the first server that accepts, starting with the current one. */
+    public Socket connect() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = current();
+            try {
+                return new Socket(server.host, server.port);
+            } catch (IOException e) {
+                failure = e;
+                failed(server);
+            }
+        }
+        throw failure;
+    }
+}
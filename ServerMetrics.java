@@ -0,0 +1,225 @@
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, timers and gauges rendered in the Prometheus text exposition format. Recording
+ * only adds to LongAdders, which stripe themselves across threads, so instrumenting a hot
+ * path costs no shared cache line; the sums are taken when the metrics are scraped.
+ *
+ * Metrics are registered once, usually at startup. A labelled metric gets one child per
+ * combination of label values, so label values must come from a small fixed set.
+ */
+public class ServerMetrics {
+    // Upper bounds of timer buckets, in seconds: 50 microseconds up to 10 seconds
+    private static final double[] BUCKETS = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    private static final String[] BUCKET_LABELS = new String[BUCKETS.length + 1];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = Math.round(BUCKETS[i] * 1e9);
+            BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKETS[i]).stripTrailingZeros().toPlainString();
+        }
+        BUCKET_LABELS[BUCKETS.length] = "+Inf";
+    }
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+        final String type;
+        final String[] labelNames;
+
+        Metric(String name, String help, String type, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        abstract void writeSamples(StringBuilder out);
+
+        // Renders {a="x",b="y"} for the given label values, with an extra label if one is given
+        String labels(String[] values, String extraName, String extraValue) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " takes labels " + Arrays.toString(labelNames));
+            }
+            if (values.length == 0 && extraName == null) {
+                return "";
+            }
+            StringBuilder out = new StringBuilder("{");
+            for (int i = 0; i < values.length; i++) {
+                appendLabel(out.append(i == 0 ? "" : ","), labelNames[i], values[i]);
+            }
+            if (extraName != null) {
+                appendLabel(out.append(values.length == 0 ? "" : ","), extraName, extraValue);
+            }
+            return out.append('}').toString();
+        }
+
+        private static void appendLabel(StringBuilder out, String name, String value) {
+            out.append(name).append("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+
+    /** A count that only goes up. */
+    public static final class Counter extends Metric {
+        private final ConcurrentMap<List<String>, LongAdder> children = new ConcurrentHashMap<>();
+
+        Counter(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+            if (labelNames.length == 0) {
+                children.put(List.of(), new LongAdder()); // shown as 0 before anything is counted
+            }
+        }
+
+        public void inc(String... labelValues) {
+            add(1, labelValues);
+        }
+
+        public void add(long amount, String... labelValues) {
+            LongAdder child = children.get(Arrays.asList(labelValues));
+            if (child == null) {
+                labels(labelValues, null, null); // checks the label count
+                child = children.computeIfAbsent(List.of(labelValues), key -> new LongAdder());
+            }
+            child.add(amount);
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            for (Map.Entry<List<String>, LongAdder> child : children.entrySet()) {
+                out.append(name).append(labels(child.getKey().toArray(new String[0]), null, null))
+                        .append(' ').append(child.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    /** Durations recorded in nanoseconds and exposed as a histogram in seconds. */
+    public static final class Timer extends Metric {
+        private final ConcurrentMap<List<String>, LongAdder[]> children = new ConcurrentHashMap<>();
+
+        Timer(String name, String help, String[] labelNames) {
+            super(name, help, "histogram", labelNames);
+            if (labelNames.length == 0) {
+                children.put(List.of(), newChild());
+            }
+        }
+
+        public void record(long nanos, String... labelValues) {
+            LongAdder[] child = children.get(Arrays.asList(labelValues));
+            if (child == null) {
+                labels(labelValues, null, null);
+                child = children.computeIfAbsent(List.of(labelValues), key -> newChild());
+            }
+            int bucket = 0;
+            while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            child[bucket].increment();
+            child[child.length - 1].add(nanos);
+        }
+
+        // One adder per bucket, one for values above the last, then the sum of all values
+        private static LongAdder[] newChild() {
+            LongAdder[] child = new LongAdder[BUCKETS.length + 2];
+            for (int i = 0; i < child.length; i++) {
+                child[i] = new LongAdder();
+            }
+            return child;
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            for (Map.Entry<List<String>, LongAdder[]> child : children.entrySet()) {
+                String[] values = child.getKey().toArray(new String[0]);
+                LongAdder[] adders = child.getValue();
+                long cumulative = 0;
+                for (int i = 0; i <= BUCKETS.length; i++) {
+                    cumulative += adders[i].sum();
+                    out.append(name).append("_bucket")
+                            .append(labels(values, "le", BUCKET_LABELS[i]))
+                            .append(' ').append(cumulative).append('\n');
+                }
+                String labels = labels(values, null, null);
+                out.append(name).append("_sum").append(labels).append(' ')
+                        .append(adders[adders.length - 1].sum() / 1e9).append('\n');
+                out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+            }
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, String type, DoubleSupplier value) {
+            super(name, help, type, new String[0]);
+            this.value = value;
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            double current = value.getAsDouble();
+            out.append(name).append(' ');
+            if (current == Math.rint(current) && Math.abs(current) < 1e15) {
+                out.append((long) current);
+            } else {
+                out.append(current);
+            }
+            out.append('\n');
+        }
+    }
+
+    public Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    public Timer timer(String name, String help, String... labelNames) {
+        return register(new Timer(name, help, labelNames));
+    }
+
+    /** A value read from elsewhere at each scrape, such as a queue length. */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        register(new Gauge(name, help, "gauge", value));
+    }
+
+    /** A count kept elsewhere, read at each scrape; it must only go up. */
+    public void counterFunction(String name, String help, DoubleSupplier value) {
+        register(new Gauge(name, help, "counter", value));
+    }
+
+    private <T extends Metric> T register(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /** All metrics in the Prometheus text format, version 0.0.4. */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.writeSamples(out);
+        }
+        return out.toString();
+    }
+}
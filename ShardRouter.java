@@ -0,0 +1,174 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Shard membership and node-to-node requests for a sharded aggregation service. Every node
+ * holds the same hash ring, so any node can take a request and pass it to the owning shard,
+ * or fan it out to all of them. Requests between nodes are marked Shard-Internal, which
+ * makes the receiver serve them from its own stations only, and carry the original content
+ * server's address in Forwarded-For. The marker is only honoured on requests that come from
+ * the address of a node, so a client cannot pass itself off as another shard by adding it.
+ * Connections to other nodes are kept alive and reused.
+ */
+public class ShardRouter {
+    private static final int PEER_TIMEOUT = 10 * 1000;
+
+    private final String self;
+    private volatile HashRing ring;
+    // Every address a node of the ring has resolved to, past nodes included, so a node that
+    // leaves can still hand off its stations
+    private final Set<String> peerAddresses = ConcurrentHashMap.newKeySet();
+    private final Map<String, Queue<PeerConnection>> idleConnections = new ConcurrentHashMap<>();
+    private final ExecutorService fanOut = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "shard-fan-out");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class PeerConnection {
+        final Socket socket;
+        final InputStream in;
+
+        PeerConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** self is this node as it appears in the node list, such as "localhost:4567". */
+    public ShardRouter(String self, List<String> nodes) {
+        this.self = self;
+        this.ring = new HashRing(nodes);
+        trust(nodes);
+    }
+
+    /** True if another node sent the request: it is marked Shard-Internal and comes from a node's address. */
+    public boolean isFromPeer(HttpRequest request) {
+        return request.headers.containsKey("Shard-Internal") && peerAddresses.contains(request.clientAddress);
+    }
+
+    public String owner(String stationId) {
+        return ring.owner(stationId);
+    }
+
+    public boolean isSelf(String node) {
+        return self.equals(node);
+    }
+
+    public List<String> nodes() {
+        return ring.nodes();
+    }
+
+    public void setNodes(List<String> nodes) {
+        trust(nodes);
+        ring = new HashRing(nodes);
+    }
+
+    private void trust(List<String> nodes) {
+        for (String node : nodes) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(node.substring(0, node.lastIndexOf(':')))) {
+                    peerAddresses.add(address.getHostAddress());
+                }
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends one request to another node and waits for its response. A reused connection that
+     * turns out to be closed is retried once on a fresh one.
+     */
+    public HttpResponse send(String node, String method, String target, Map<String, String> headers, byte[] body)
+            throws IOException {
+        Queue<PeerConnection> idle = idleConnections.computeIfAbsent(node, key -> new ConcurrentLinkedQueue<>());
+        PeerConnection connection = idle.poll();
+        if (connection != null) {
+            try {
+                return sendOn(connection, idle, node, method, target, headers, body);
+            } catch (IOException e) {
+                connection.close(); // closed by the peer while idle
+            }
+        }
+        int colon = node.lastIndexOf(':');
+        Socket socket = new Socket(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        socket.setSoTimeout(PEER_TIMEOUT);
+        try {
+            return sendOn(new PeerConnection(socket), idle, node, method, target, headers, body);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private HttpResponse sendOn(PeerConnection connection, Queue<PeerConnection> idle, String node, String method,
+                                String target, Map<String, String> headers, byte[] body) throws IOException {
+        StringBuilder request = new StringBuilder(method + " " + target + " HTTP/1.1\r\n" +
+                "Host: " + node + "\r\n" +
+                "Shard-Internal: " + self + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: keep-alive\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        request.append("\r\n");
+        OutputStream out = new BufferedOutputStream(connection.socket.getOutputStream());
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+
+        HttpResponse response = HttpResponse.read(connection.in);
+        if (response == null) {
+            throw new EOFException(node + " closed the connection");
+        }
+        if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+            connection.close();
+        } else {
+            idle.add(connection);
+        }
+        return response;
+    }
+
+    /** Sends the request to each node in parallel; a failed node's future completes exceptionally. */
+    public Map<String, CompletableFuture<HttpResponse>> sendAll(Collection<String> nodes, String method, String target,
+                                                                Map<String, String> headers, byte[] body) {
+        Map<String, CompletableFuture<HttpResponse>> responses = new LinkedHashMap<>();
+        for (String node : nodes) {
+            responses.put(node, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return send(node, method, target, headers, body);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, fanOut));
+        }
+        return responses;
+    }
+
+    /** Waits for a response from sendAll; returns null if that node failed or timed out. */
+    public static HttpResponse await(String node, CompletableFuture<HttpResponse> response) {
+        try {
+            return response.get(PEER_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("Shard " + node + " failed: " + (e.getCause() != null ? e.getCause() : e));
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-state min/max/avg of air_temp, rel_hum and wind_spd_kmh, maintained incrementally.
+ *
+ * "Current" statistics cover the latest observation of every live station: counts and sums
+ * are adjusted as observations are replaced or expire, and min/max come from a sorted
+ * multiset of values, so every update is O(log n) in the stations of one state. Tumbling
+ * windows aggregate every observation received in a fixed interval of server time; they
+ * are append-only, so their min/max need no multiset.
+ *
+ * Each state has its own lock, held only while its numbers are updated or copied, so
+ * writers for different states never contend. The JSON is encoded from such a copy with no
+ * lock held, and cached until something changes or a window rolls over.
+ */
+public class StateStatistics {
+    private static final String[] METRICS = { "air_temp", "rel_hum", "wind_spd_kmh" };
+
+    private final long windowMillis;
+    private final int windowsKept;
+    // Every state seen so far; a state's monitor guards its current values and its window aggregates
+    private final ConcurrentMap<String, Current[]> current = new ConcurrentHashMap<>();
+    private final ArrayDeque<Window> windows = new ArrayDeque<>(); // guarded by itself
+    private volatile Window latest;
+    private final LongAdder changes = new LongAdder();
+    private volatile Cached cached;
+
+    // Live values of one metric in one state
+    private static final class Current {
+        long count;
+        double sum;
+        final TreeMap<Double, Integer> values = new TreeMap<>();
+
+        void add(double value) {
+            count++;
+            sum += value;
+            values.merge(value, 1, Integer::sum);
+        }
+
+        void remove(double value) {
+            count--;
+            sum -= value;
+            values.computeIfPresent(value, (v, n) -> n == 1 ? null : n - 1);
+        }
+
+        Aggregate copy() {
+            Aggregate copy = new Aggregate();
+            copy.count = count;
+            copy.sum = sum;
+            if (count > 0) {
+                copy.min = values.firstKey();
+                copy.max = values.lastKey();
+            }
+            return copy;
+        }
+    }
+
+    // Append-only aggregate of one metric in one state within a window
+    private static final class Aggregate {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        Aggregate copy() {
+            Aggregate copy = new Aggregate();
+            copy.count = count;
+            copy.sum = sum;
+            copy.min = min;
+            copy.max = max;
+            return copy;
+        }
+    }
+
+    private static final class Window {
+        final long start;
+        final ConcurrentMap<String, Aggregate[]> states = new ConcurrentHashMap<>();
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+
+    private static final class Cached {
+        final String json;
+        final long changes;
+        final long until;
+
+        Cached(String json, long changes, long until) {
+            this.json = json;
+            this.changes = changes;
+            this.until = until;
+        }
+    }
+
+    public StateStatistics(long windowMillis, int windowsKept) {
+        this.windowMillis = windowMillis;
+        this.windowsKept = windowsKept;
+    }
+
+    /**
+     * Accounts for a new observation that replaces {@code previous} (null for a new station).
+     * Restored observations pass {@code countInWindow = false} since they were not received now.
+     */
+    public void replace(StationRecord previous, StationRecord record, long now, boolean countInWindow) {
+        if (previous != null) {
+            remove(previous);
+        }
+        String state = record.getState();
+        if (state == null) {
+            return;
+        }
+        Current[] metrics = current.computeIfAbsent(state, s -> newCurrent());
+        Window window = countInWindow ? window(now) : null;
+        synchronized (metrics) {
+            Aggregate[] windowMetrics = window != null ? window.states.computeIfAbsent(state, s -> newAggregate()) : null;
+            for (int i = 0; i < METRICS.length; i++) {
+                double value = metric(record, i);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                metrics[i].add(value);
+                if (windowMetrics != null) {
+                    windowMetrics[i].add(value);
+                }
+            }
+        }
+        changes.increment();
+    }
+
+    /** Removes an expired station's observation from the current statistics. */
+    public void remove(StationRecord record) {
+        Current[] metrics = record.getState() == null ? null : current.get(record.getState());
+        if (metrics == null) {
+            return;
+        }
+        synchronized (metrics) {
+            for (int i = 0; i < METRICS.length; i++) {
+                double value = metric(record, i);
+                if (!Double.isNaN(value)) {
+                    metrics[i].remove(value);
+                }
+            }
+        }
+        changes.increment();
+    }
+
+    /** Current and windowed statistics as JSON; O(1) unless something changed since the last call. */
+    public String toJSON(long now) {
+        Cached last = cached;
+        if (last != null && now < last.until && changes.sum() == last.changes) {
+            return last.json;
+        }
+        window(now); // roll windows forward even if no observation arrived
+        // Read before copying: a change that the copy misses has not been counted yet, so it is not cached for long
+        long changesSeen = changes.sum();
+        List<Window> kept;
+        synchronized (windows) {
+            kept = new ArrayList<>(windows);
+        }
+        Map<String, Aggregate[]> currentCopy = new TreeMap<>();
+        List<Map<String, Aggregate[]>> windowCopies = new ArrayList<>();
+        for (int w = 0; w < kept.size(); w++) {
+            windowCopies.add(new TreeMap<>());
+        }
+        for (Map.Entry<String, Current[]> state : current.entrySet()) {
+            Current[] metrics = state.getValue();
+            synchronized (metrics) {
+                Aggregate[] copy = new Aggregate[METRICS.length];
+                for (int i = 0; i < METRICS.length; i++) {
+                    copy[i] = metrics[i].copy();
+                }
+                currentCopy.put(state.getKey(), copy);
+                for (int w = 0; w < kept.size(); w++) {
+                    Aggregate[] aggregates = kept.get(w).states.get(state.getKey());
+                    if (aggregates != null) {
+                        Aggregate[] windowCopy = new Aggregate[METRICS.length];
+                        for (int i = 0; i < METRICS.length; i++) {
+                            windowCopy[i] = aggregates[i].copy();
+                        }
+                        windowCopies.get(w).put(state.getKey(), windowCopy);
+                    }
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginObject();
+        writer.name("current");
+        writeStates(writer, currentCopy);
+        writer.name("window_millis").value(windowMillis);
+        writer.name("windows").beginArray();
+        for (int w = 0; w < kept.size(); w++) {
+            writer.beginObject();
+            writer.name("start").value(kept.get(w).start);
+            writer.name("end").value(kept.get(w).start + windowMillis);
+            writer.name("states");
+            writeStates(writer, windowCopies.get(w));
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+
+        String json = sb.toString();
+        cached = new Cached(json, changesSeen, kept.get(kept.size() - 1).start + windowMillis);
+        return json;
+    }
+
+    // States with no values left, whose stations all expired, are left out
+    private static void writeStates(JsonCodec.Writer writer, Map<String, Aggregate[]> states) {
+        writer.beginObject();
+        for (Map.Entry<String, Aggregate[]> state : states.entrySet()) {
+            Aggregate[] metrics = state.getValue();
+            if (metrics[0].count == 0 && metrics[1].count == 0 && metrics[2].count == 0) {
+                continue;
+            }
+            writer.name(state.getKey()).beginObject();
+            for (int i = 0; i < METRICS.length; i++) {
+                if (metrics[i].count > 0) {
+                    writeMetric(writer, METRICS[i], metrics[i].count, metrics[i].sum, metrics[i].min, metrics[i].max);
+                }
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    private static void writeMetric(JsonCodec.Writer writer, String name, long count, double sum, double min, double max) {
+        writer.name(name).beginObject()
+                .name("count").value(count)
+                .name("min").value(min)
+                .name("max").value(max)
+                .name("avg").value(Math.round(sum / count * 100) / 100.0)
+                .endObject();
+    }
+
+    // Returns the window containing now, starting new ones and dropping old ones as needed
+    private Window window(long now) {
+        long start = now - Math.floorMod(now, windowMillis);
+        Window last = latest;
+        if (last != null && last.start >= start) {
+            return last;
+        }
+        synchronized (windows) {
+            last = windows.peekLast();
+            if (last == null || last.start < start) {
+                last = new Window(start);
+                windows.addLast(last);
+                while (windows.size() > windowsKept) {
+                    windows.removeFirst();
+                }
+                latest = last;
+                changes.increment();
+            }
+            return last;
+        }
+    }
+
+    private static double metric(StationRecord record, int index) {
+        switch (index) {
+            case 0: return record.getAirTemp();
+            case 1: return record.getRelHum();
+            default: return record.getWindSpdKmh();
+        }
+    }
+
+    private static Current[] newCurrent() {
+        Current[] metrics = new Current[METRICS.length];
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new Current();
+        }
+        return metrics;
+    }
+
+    private static Aggregate[] newAggregate() {
+        Aggregate[] metrics = new Aggregate[METRICS.length];
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new Aggregate();
+        }
+        return metrics;
+    }
+}
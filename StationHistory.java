@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded per-station observation history. Each live station owns a fixed-capacity ring of
+ * primitive samples in direct (off-heap) memory, so history adds no objects for the GC to
+ * trace. Rings are carved out of large shared chunks and their slots are reused once a
+ * station expires.
+ *
+ * Sample layout: local_date_time_full as a long, then air_temp, apparent_t, dewpt, press,
+ * rel_hum, wind_spd_kmh and wind_spd_kt as floats (NaN when absent), padded to 40 bytes.
+ */
+public class StationHistory {
+    private static final int SAMPLE_BYTES = 40;
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final String[] FIELDS = {
+        "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"
+    };
+
+    private final int capacity;
+    private final int slotsPerChunk;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int nextSlot;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    // One station's ring; all access synchronizes on the ring itself
+    private static final class Ring {
+        final int slot;
+        final ByteBuffer chunk;
+        final int base;
+        int head;   // index the next sample is written to
+        int count;
+        boolean released;
+
+        Ring(int slot, ByteBuffer chunk, int base) {
+            this.slot = slot;
+            this.chunk = chunk;
+            this.base = base;
+        }
+    }
+
+    /** @param capacity samples kept per station; 0 disables history */
+    public StationHistory(int capacity) {
+        if (capacity < 0 || capacity > Integer.MAX_VALUE / SAMPLE_BYTES) {
+            throw new IllegalArgumentException("Invalid history capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.slotsPerChunk = capacity == 0 ? 1 : Math.max(1, CHUNK_BYTES / (capacity * SAMPLE_BYTES));
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    public void record(StationRecord record) {
+        if (capacity == 0) {
+            return;
+        }
+        while (true) {
+            Ring ring = rings.computeIfAbsent(record.getId(), id -> allocate());
+            synchronized (ring) {
+                if (ring.released) {
+                    continue; // removed concurrently; its slot may already belong to another station
+                }
+                append(ring, record);
+                return;
+            }
+        }
+    }
+
+    // Caller holds the ring's monitor
+    private void append(Ring ring, StationRecord record) {
+        int offset = ring.base + ring.head * SAMPLE_BYTES;
+        ring.chunk.putLong(offset, record.getLocalDateTimeFull());
+        ring.chunk.putFloat(offset + 8, (float) record.getAirTemp());
+        ring.chunk.putFloat(offset + 12, (float) record.getApparentT());
+        ring.chunk.putFloat(offset + 16, (float) record.getDewpt());
+        ring.chunk.putFloat(offset + 20, (float) record.getPress());
+        ring.chunk.putFloat(offset + 24, (float) record.getRelHum());
+        ring.chunk.putFloat(offset + 28, (float) record.getWindSpdKmh());
+        ring.chunk.putFloat(offset + 32, (float) record.getWindSpdKt());
+        ring.head = (ring.head + 1) % capacity;
+        if (ring.count < capacity) {
+            ring.count++;
+        }
+    }
+
+    /** Drops a station's history and returns its slot for reuse. */
+    public void remove(String id) {
+        Ring ring = rings.remove(id);
+        if (ring != null) {
+            synchronized (ring) {
+                ring.released = true;
+            }
+            synchronized (this) {
+                freeSlots.push(ring.slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the station's samples with local_date_time_full &gt;= since, oldest first, as a
+     * JSON array, or null if the station has no history. Only that station's ring is read.
+     */
+    public String query(String id, long since) {
+        Ring ring = rings.get(id);
+        if (ring == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginArray();
+        synchronized (ring) {
+            int oldest = (ring.head - ring.count + capacity) % capacity;
+            for (int i = 0; i < ring.count; i++) {
+                int offset = ring.base + ((oldest + i) % capacity) * SAMPLE_BYTES;
+                long time = ring.chunk.getLong(offset);
+                if (time < since) {
+                    continue;
+                }
+                writer.beginObject();
+                if (time != Long.MIN_VALUE) {
+                    writer.name("local_date_time_full").value(time);
+                }
+                for (int f = 0; f < FIELDS.length; f++) {
+                    float value = ring.chunk.getFloat(offset + 8 + f * 4);
+                    // Skips absent fields, and readings outside float range that would print as Infinity
+                    if (Float.isFinite(value)) {
+                        // Float.toString gives the shortest text that reads back as the same float
+                        writer.name(FIELDS[f]).rawNumber(Float.toString(value));
+                    }
+                }
+                writer.endObject();
+            }
+        }
+        writer.endArray();
+        return sb.toString();
+    }
+
+    private synchronized Ring allocate() {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = nextSlot++;
+            if (slot / slotsPerChunk == chunks.size()) {
+                chunks.add(ByteBuffer.allocateDirect(slotsPerChunk * capacity * SAMPLE_BYTES));
+            }
+        }
+        ByteBuffer chunk = chunks.get(slot / slotsPerChunk);
+        return new Ring(slot, chunk, (slot % slotsPerChunk) * capacity * SAMPLE_BYTES);
+    }
+}
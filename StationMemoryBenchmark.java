@@ -0,0 +1,75 @@
+import java.util.*;
+
+/**
+ * Measures retained heap per station for the old Map&lt;String,String&gt; layout and for
+ * StationRecord. Run with: java StationMemoryBenchmark [stations]
+ */
+public class StationMemoryBenchmark {
+    private static final String[] STATES = { "SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT" };
+    private static final String[] CLOUDS = { "Sunny", "Partly cloudy", "Cloudy", "Rain" };
+    private static final String[] WIND_DIRS = { "N", "NE", "E", "SE", "S", "SW", "W", "NW" };
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        List<String> lines = new ArrayList<>(stations);
+        for (int i = 0; i < stations; i++) {
+            lines.add(observation(i));
+        }
+
+        long before = usedHeap();
+        List<Map<String, Object>> maps = new ArrayList<>(stations);
+        for (String line : lines) {
+            Map<String, Object> map = new HashMap<>(JsonCodec.parseObject(line));
+            map.replaceAll((key, value) -> String.valueOf(value));
+            maps.add(map);
+        }
+        long mapBytes = usedHeap() - before;
+        report("Map<String,String>", mapBytes, stations);
+        maps = null;
+
+        before = usedHeap();
+        List<StationRecord> records = new ArrayList<>(stations);
+        for (String line : lines) {
+            records.add(StationRecord.parse(line));
+        }
+        long recordBytes = usedHeap() - before;
+        report("StationRecord", recordBytes, stations);
+        System.out.println("(" + records.size() + " records kept reachable until measured)");
+    }
+
+    private static String observation(int i) {
+        Map<String, Object> station = new LinkedHashMap<>();
+        station.put("id", "IDS" + (100000 + i));
+        station.put("name", "Station " + i);
+        station.put("state", STATES[i % STATES.length]);
+        station.put("time_zone", "CST");
+        station.put("lat", -34.9 + (i % 1000) / 100.0);
+        station.put("lon", 138.6 + (i % 700) / 100.0);
+        station.put("local_date_time", "15/04:00pm");
+        station.put("local_date_time_full", 20230715160000L);
+        station.put("air_temp", 13.3);
+        station.put("apparent_t", 9.5);
+        station.put("cloud", CLOUDS[i % CLOUDS.length]);
+        station.put("dewpt", 5.7);
+        station.put("press", 1023.9);
+        station.put("rel_hum", 60L);
+        station.put("wind_dir", WIND_DIRS[i % WIND_DIRS.length]);
+        station.put("wind_spd_kmh", 15L);
+        station.put("wind_spd_kt", 8L);
+        station.put("clientAddress", "127.0.0.1");
+        return JsonCodec.toJSON(station);
+    }
+
+    private static void report(String layout, long bytes, int stations) {
+        System.out.printf("%-20s %6.0f bytes/station (%d MB for %d stations)%n",
+                layout, (double) bytes / stations, bytes >> 20, stations);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
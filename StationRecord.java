@@ -0,0 +1,484 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One station observation in a compact, schema-aware layout. Known numeric attributes are
+ * primitive doubles (NaN when absent), low-cardinality strings are shared through a small
+ * dictionary, and members outside the schema go to an overflow map that is only allocated
+ * when needed. A record is not modified once it has been put into the store.
+ */
+public class StationRecord {
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+    private static final ConcurrentHashMap<String, String> dictionary = new ConcurrentHashMap<>();
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    // Presence bits of the binary layout, one per optional attribute in schema order
+    private static final int HAS_NAME = 1, HAS_STATE = 1 << 1, HAS_TIME_ZONE = 1 << 2, HAS_LAT = 1 << 3,
+            HAS_LON = 1 << 4, HAS_LOCAL_DATE_TIME = 1 << 5, HAS_LOCAL_DATE_TIME_FULL = 1 << 6, HAS_AIR_TEMP = 1 << 7,
+            HAS_APPARENT_T = 1 << 8, HAS_CLOUD = 1 << 9, HAS_DEWPT = 1 << 10, HAS_PRESS = 1 << 11,
+            HAS_REL_HUM = 1 << 12, HAS_WIND_DIR = 1 << 13, HAS_WIND_SPD_KMH = 1 << 14, HAS_WIND_SPD_KT = 1 << 15,
+            HAS_CLIENT_ADDRESS = 1 << 16, HAS_EXTRA = 1 << 17;
+    // Type tags of overflow members in the binary layout
+    private static final byte NULL = 0, FALSE = 1, TRUE = 2, LONG = 3, DOUBLE = 4, STRING = 5, JSON = 6;
+
+    private String id;
+    private String name;
+    private String localDateTime;
+    private long localDateTimeFull = NO_TIME;
+
+    // Dictionary-encoded: repeated across many stations
+    private String state;
+    private String timeZone;
+    private String cloud;
+    private String windDir;
+    private String clientAddress;
+
+    private double lat = Double.NaN;
+    private double lon = Double.NaN;
+    private double airTemp = Double.NaN;
+    private double apparentT = Double.NaN;
+    private double dewpt = Double.NaN;
+    private double press = Double.NaN;
+    private double relHum = Double.NaN;
+    private double windSpdKmh = Double.NaN;
+    private double windSpdKt = Double.NaN;
+
+    private Map<String, Object> extra;
+
+    /** Parses one observation object; returns null if it is malformed or has no id. */
+    public static StationRecord parse(CharSequence json) {
+        try {
+            JsonCodec.Reader reader = new JsonCodec.Reader(json);
+            StationRecord record = read(reader);
+            reader.expectEnd();
+            return record;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a batch: a JSON array of observation objects, or one object per line (NDJSON).
+     * Returns null if any observation is malformed or has no id, so a batch is all or nothing.
+     */
+    public static List<StationRecord> parseBatch(CharSequence body) {
+        List<StationRecord> records = new ArrayList<>();
+        try {
+            JsonCodec.Reader reader = new JsonCodec.Reader(body);
+            boolean array = reader.peek() == JsonCodec.Token.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
+            }
+            // NDJSON needs no framing beyond the whitespace between top-level objects
+            while (array ? reader.hasNext() : reader.peek() != JsonCodec.Token.END) {
+                StationRecord record = read(reader);
+                if (record == null) {
+                    return null;
+                }
+                records.add(record);
+            }
+            if (array) {
+                reader.endArray();
+            }
+            reader.expectEnd();
+            return records;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Reads one observation object at the reader's position; returns null if it has no id. */
+    public static StationRecord read(JsonCodec.Reader reader) {
+        StationRecord record = new StationRecord();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            JsonCodec.Token token = reader.peek();
+            if (token == JsonCodec.Token.NUMBER && isNumberField(key)) {
+                double value = reader.nextDouble();
+                if (!record.setNumber(key, value)) {
+                    record.putExtra(key, value); // e.g. a fractional local_date_time_full
+                }
+                continue;
+            }
+            if (token == JsonCodec.Token.STRING) {
+                record.setText(key, reader.nextString());
+            } else {
+                record.putExtra(key, reader.readValue());
+            }
+        }
+        reader.endObject();
+        return record.id == null || record.id.isEmpty() ? null : record;
+    }
+
+    /**
+     * Parses a binary upload (see BinaryCodec) of one or more observations. Returns null if
+     * it is malformed or any observation has no id, so a batch is all or nothing.
+     */
+    public static List<StationRecord> parseBinary(ByteBuffer body) {
+        try {
+            BinaryCodec.Reader reader = new BinaryCodec.Reader(body);
+            int count = reader.readHeader();
+            List<StationRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                StationRecord record = read(reader);
+                if (record == null) {
+                    return null;
+                }
+                records.add(record);
+            }
+            reader.expectEnd();
+            return records;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Encodes observations as one binary upload. */
+    public static byte[] toBinary(List<StationRecord> records) {
+        BinaryCodec.Writer writer = new BinaryCodec.Writer().writeHeader(records.size());
+        for (StationRecord record : records) {
+            record.writeTo(writer);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Reads one observation at the reader's position: a 32-bit mask of the attributes present,
+     * the id, then each present attribute in schema order. Numbers are 8 bytes, names and
+     * local times length-prefixed strings, and low-cardinality strings dictionary references.
+     * Returns null if it has no id.
+     */
+    public static StationRecord read(BinaryCodec.Reader reader) {
+        StationRecord record = new StationRecord();
+        int present = reader.readInt();
+        record.id = reader.readString();
+        record.name = (present & HAS_NAME) != 0 ? reader.readString() : null;
+        record.state = (present & HAS_STATE) != 0 ? canonical(reader.readDictionaryString()) : null;
+        record.timeZone = (present & HAS_TIME_ZONE) != 0 ? canonical(reader.readDictionaryString()) : null;
+        record.lat = (present & HAS_LAT) != 0 ? reader.readDouble() : Double.NaN;
+        record.lon = (present & HAS_LON) != 0 ? reader.readDouble() : Double.NaN;
+        record.localDateTime = (present & HAS_LOCAL_DATE_TIME) != 0 ? reader.readString() : null;
+        record.localDateTimeFull = (present & HAS_LOCAL_DATE_TIME_FULL) != 0 ? reader.readLong() : NO_TIME;
+        record.airTemp = (present & HAS_AIR_TEMP) != 0 ? reader.readDouble() : Double.NaN;
+        record.apparentT = (present & HAS_APPARENT_T) != 0 ? reader.readDouble() : Double.NaN;
+        record.cloud = (present & HAS_CLOUD) != 0 ? canonical(reader.readDictionaryString()) : null;
+        record.dewpt = (present & HAS_DEWPT) != 0 ? reader.readDouble() : Double.NaN;
+        record.press = (present & HAS_PRESS) != 0 ? reader.readDouble() : Double.NaN;
+        record.relHum = (present & HAS_REL_HUM) != 0 ? reader.readDouble() : Double.NaN;
+        record.windDir = (present & HAS_WIND_DIR) != 0 ? canonical(reader.readDictionaryString()) : null;
+        record.windSpdKmh = (present & HAS_WIND_SPD_KMH) != 0 ? reader.readDouble() : Double.NaN;
+        record.windSpdKt = (present & HAS_WIND_SPD_KT) != 0 ? reader.readDouble() : Double.NaN;
+        record.clientAddress = (present & HAS_CLIENT_ADDRESS) != 0 ? canonical(reader.readDictionaryString()) : null;
+        if ((present & HAS_EXTRA) != 0) {
+            for (int i = reader.readCount(); i > 0; i--) {
+                record.putExtra(reader.readDictionaryString(), readValue(reader));
+            }
+        }
+        return record.id.isEmpty() ? null : record;
+    }
+
+    private static Object readValue(BinaryCodec.Reader reader) {
+        byte tag = reader.readByte();
+        switch (tag) {
+            case NULL: return null;
+            case FALSE: return false;
+            case TRUE: return true;
+            case LONG: return reader.readLong();
+            case DOUBLE: return reader.readDouble();
+            case STRING: return reader.readDictionaryString();
+            case JSON: return new JsonCodec.Reader(reader.readString()).readValue();
+            default: throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    /** Writes this observation in the layout read(BinaryCodec.Reader) expects. */
+    public void writeTo(BinaryCodec.Writer writer) {
+        int present = (name != null ? HAS_NAME : 0) | (state != null ? HAS_STATE : 0)
+                | (timeZone != null ? HAS_TIME_ZONE : 0) | (!Double.isNaN(lat) ? HAS_LAT : 0)
+                | (!Double.isNaN(lon) ? HAS_LON : 0) | (localDateTime != null ? HAS_LOCAL_DATE_TIME : 0)
+                | (localDateTimeFull != NO_TIME ? HAS_LOCAL_DATE_TIME_FULL : 0)
+                | (!Double.isNaN(airTemp) ? HAS_AIR_TEMP : 0) | (!Double.isNaN(apparentT) ? HAS_APPARENT_T : 0)
+                | (cloud != null ? HAS_CLOUD : 0) | (!Double.isNaN(dewpt) ? HAS_DEWPT : 0)
+                | (!Double.isNaN(press) ? HAS_PRESS : 0) | (!Double.isNaN(relHum) ? HAS_REL_HUM : 0)
+                | (windDir != null ? HAS_WIND_DIR : 0) | (!Double.isNaN(windSpdKmh) ? HAS_WIND_SPD_KMH : 0)
+                | (!Double.isNaN(windSpdKt) ? HAS_WIND_SPD_KT : 0) | (clientAddress != null ? HAS_CLIENT_ADDRESS : 0)
+                | (extra != null ? HAS_EXTRA : 0);
+        writer.writeInt(present).writeString(id);
+        if (name != null) {
+            writer.writeString(name);
+        }
+        if (state != null) {
+            writer.writeDictionaryString(state);
+        }
+        if (timeZone != null) {
+            writer.writeDictionaryString(timeZone);
+        }
+        writeNumber(writer, lat);
+        writeNumber(writer, lon);
+        if (localDateTime != null) {
+            writer.writeString(localDateTime);
+        }
+        if (localDateTimeFull != NO_TIME) {
+            writer.writeLong(localDateTimeFull);
+        }
+        writeNumber(writer, airTemp);
+        writeNumber(writer, apparentT);
+        if (cloud != null) {
+            writer.writeDictionaryString(cloud);
+        }
+        writeNumber(writer, dewpt);
+        writeNumber(writer, press);
+        writeNumber(writer, relHum);
+        if (windDir != null) {
+            writer.writeDictionaryString(windDir);
+        }
+        writeNumber(writer, windSpdKmh);
+        writeNumber(writer, windSpdKt);
+        if (clientAddress != null) {
+            writer.writeDictionaryString(clientAddress);
+        }
+        if (extra != null) {
+            writer.writeVarint(extra.size());
+            for (Map.Entry<String, Object> entry : extra.entrySet()) {
+                writer.writeDictionaryString(entry.getKey());
+                writeValue(writer, entry.getValue());
+            }
+        }
+    }
+
+    private static void writeNumber(BinaryCodec.Writer writer, double value) {
+        if (!Double.isNaN(value)) {
+            writer.writeDouble(value);
+        }
+    }
+
+    private static void writeValue(BinaryCodec.Writer writer, Object value) {
+        if (value == null) {
+            writer.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Long) {
+            writer.writeByte(LONG).writeLong((Long) value);
+        } else if (value instanceof Number) {
+            writer.writeByte(DOUBLE).writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            writer.writeByte(STRING).writeDictionaryString((String) value);
+        } else {
+            // Nested arrays and objects are rare enough to carry as JSON text
+            StringBuilder json = new StringBuilder();
+            writeValue(new JsonCodec.Writer(json), value);
+            writer.writeByte(JSON).writeString(json.toString());
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    public void setClientAddress(String clientAddress) {
+        this.clientAddress = canonical(clientAddress);
+    }
+
+    public long getLocalDateTimeFull() {
+        return localDateTimeFull;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public double getAirTemp() {
+        return airTemp;
+    }
+
+    public double getApparentT() {
+        return apparentT;
+    }
+
+    public double getDewpt() {
+        return dewpt;
+    }
+
+    public double getPress() {
+        return press;
+    }
+
+    public double getRelHum() {
+        return relHum;
+    }
+
+    public double getWindSpdKmh() {
+        return windSpdKmh;
+    }
+
+    public double getWindSpdKt() {
+        return windSpdKt;
+    }
+
+    public String toJSON() {
+        StringBuilder sb = new StringBuilder(320);
+        writeTo(new JsonCodec.Writer(sb));
+        return sb.toString();
+    }
+
+    /** Writes the known attributes in schema order, then any overflow members. */
+    public void writeTo(JsonCodec.Writer writer) {
+        writer.beginObject();
+        writer.name("id").value(id);
+        writeText(writer, "name", name);
+        writeText(writer, "state", state);
+        writeText(writer, "time_zone", timeZone);
+        writeNumber(writer, "lat", lat);
+        writeNumber(writer, "lon", lon);
+        writeText(writer, "local_date_time", localDateTime);
+        if (localDateTimeFull != NO_TIME) {
+            writer.name("local_date_time_full").value(localDateTimeFull);
+        }
+        writeNumber(writer, "air_temp", airTemp);
+        writeNumber(writer, "apparent_t", apparentT);
+        writeText(writer, "cloud", cloud);
+        writeNumber(writer, "dewpt", dewpt);
+        writeNumber(writer, "press", press);
+        writeNumber(writer, "rel_hum", relHum);
+        writeText(writer, "wind_dir", windDir);
+        writeNumber(writer, "wind_spd_kmh", windSpdKmh);
+        writeNumber(writer, "wind_spd_kt", windSpdKt);
+        writeText(writer, "clientAddress", clientAddress);
+        if (extra != null) {
+            for (Map.Entry<String, Object> entry : extra.entrySet()) {
+                writer.name(entry.getKey());
+                writeValue(writer, entry.getValue());
+            }
+        }
+        writer.endObject();
+    }
+
+    private static void writeText(JsonCodec.Writer writer, String key, String value) {
+        if (value != null) {
+            writer.name(key).value(value);
+        }
+    }
+
+    private static void writeNumber(JsonCodec.Writer writer, String key, double value) {
+        if (!Double.isNaN(value)) {
+            writer.name(key).value(value);
+        }
+    }
+
+    private static void writeValue(JsonCodec.Writer writer, Object value) {
+        if (value instanceof Long) {
+            writer.value((long) (Long) value);
+        } else if (value instanceof Number) {
+            writer.value(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            writer.value((boolean) (Boolean) value);
+        } else if (value instanceof List) {
+            writer.beginArray();
+            for (Object element : (List<?>) value) {
+                writeValue(writer, element);
+            }
+            writer.endArray();
+        } else if (value instanceof Map) {
+            writer.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writer.name(String.valueOf(entry.getKey()));
+                writeValue(writer, entry.getValue());
+            }
+            writer.endObject();
+        } else {
+            writer.value(value == null ? null : value.toString());
+        }
+    }
+
+    private static boolean isNumberField(String key) {
+        switch (key) {
+            case "lat": case "lon": case "air_temp": case "apparent_t": case "dewpt": case "press":
+            case "rel_hum": case "wind_spd_kmh": case "wind_spd_kt": case "local_date_time_full":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Returns false if the key is not a numeric attribute of the schema
+    private boolean setNumber(String key, double value) {
+        switch (key) {
+            case "lat": lat = value; return true;
+            case "lon": lon = value; return true;
+            case "air_temp": airTemp = value; return true;
+            case "apparent_t": apparentT = value; return true;
+            case "dewpt": dewpt = value; return true;
+            case "press": press = value; return true;
+            case "rel_hum": relHum = value; return true;
+            case "wind_spd_kmh": windSpdKmh = value; return true;
+            case "wind_spd_kt": windSpdKt = value; return true;
+            case "local_date_time_full":
+                if (value != Math.rint(value)) {
+                    return false;
+                }
+                localDateTimeFull = (long) value;
+                return true;
+            default: return false;
+        }
+    }
+
+    private void setText(String key, String value) {
+        switch (key) {
+            case "id": id = value; return;
+            case "name": name = value; return;
+            case "local_date_time": localDateTime = value; return;
+            case "state": state = canonical(value); return;
+            case "time_zone": timeZone = canonical(value); return;
+            case "cloud": cloud = canonical(value); return;
+            case "wind_dir": windDir = canonical(value); return;
+            case "clientAddress": clientAddress = canonical(value); return;
+            default:
+        }
+        // Numbers sent as strings still land in the primitive fields
+        if (JsonCodec.isNumber(value) && setNumber(key, Double.parseDouble(value))) {
+            return;
+        }
+        putExtra(key, value);
+    }
+
+    private void putExtra(String key, Object value) {
+        if (extra == null) {
+            extra = new LinkedHashMap<>(4);
+        }
+        extra.put(key, value);
+    }
+
+    // Shares one String instance per distinct value, up to a fixed dictionary size
+    private static String canonical(String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = dictionary.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+            return value;
+        }
+        existing = dictionary.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authoritative in-memory copy of the aggregated weather data, keyed by station id.
+ * The data file is read once at startup and afterwards only written for durability.
+ *
+ * Besides the primary hash index on id, the store maintains a secondary index per state
+ * and a spatial grid over lat/lon with one-degree cells, so filtered queries cost time
+ * proportional to the matching stations rather than to the whole dataset. An index by
+ * content server lets expiry find a server's stations without scanning. Each put or remove
+ * updates the primary map and the indexes atomically for that station id only, so writers
+ * for different stations do not contend; readers never lock.
+ */
+public class StationStore {
+    private static final double CELL_DEGREES = 1.0;
+
+    private final ConcurrentHashMap<String, StationRecord> stations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byState = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Set<String>> byCell = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byClient = new ConcurrentHashMap<>();
+
+    // Stores the observation under its id, replacing the previous one for that station
+    public StationRecord put(StationRecord record) {
+        StationRecord[] previous = new StationRecord[1];
+        stations.compute(record.getId(), (id, old) -> {
+            if (old != null) {
+                unindex(old);
+            }
+            index(record);
+            previous[0] = old;
+            return record;
+        });
+        return previous[0];
+    }
+
+    public StationRecord get(String id) {
+        return stations.get(id);
+    }
+
+    public StationRecord remove(String id) {
+        StationRecord[] previous = new StationRecord[1];
+        stations.computeIfPresent(id, (key, old) -> {
+            unindex(old);
+            previous[0] = old;
+            return null;
+        });
+        return previous[0];
+    }
+
+    public Collection<StationRecord> values() {
+        return Collections.unmodifiableCollection(stations.values());
+    }
+
+    public int size() {
+        return stations.size();
+    }
+
+    public void clear() {
+        stations.clear();
+        byState.clear();
+        byCell.clear();
+        byClient.clear();
+    }
+
+    /** Ids of the stations last updated by the given content server. */
+    public List<String> idsForClient(String clientAddress) {
+        return new ArrayList<>(byClient.getOrDefault(clientAddress, Collections.emptySet()));
+    }
+
+    /**
+     * Returns the stations matching every given filter; null filters are ignored.
+     * The bounding box is {minLat, minLon, maxLat, maxLon}. The most selective index
+     * available drives the lookup and the remaining filters are checked per candidate.
+     */
+    public List<StationRecord> query(String id, String state, double[] bbox) {
+        List<StationRecord> result = new ArrayList<>();
+        if (id != null) {
+            addIfMatches(result, stations.get(id), state, bbox);
+        } else if (state != null) {
+            for (String candidate : byState.getOrDefault(state, Collections.emptySet())) {
+                addIfMatches(result, stations.get(candidate), state, bbox);
+            }
+        } else if (bbox != null) {
+            long minLatCell = cell(bbox[0]);
+            long maxLatCell = cell(bbox[2]);
+            long minLonCell = cell(bbox[1]);
+            long maxLonCell = cell(bbox[3]);
+            if ((maxLatCell - minLatCell + 1) * (maxLonCell - minLonCell + 1) > byCell.size()) {
+                // Box covers more cells than are occupied; walking the occupied ones is cheaper
+                for (Map.Entry<Long, Set<String>> entry : byCell.entrySet()) {
+                    for (String candidate : entry.getValue()) {
+                        addIfMatches(result, stations.get(candidate), null, bbox);
+                    }
+                }
+            } else {
+                for (long latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+                    for (long lonCell = minLonCell; lonCell <= maxLonCell; lonCell++) {
+                        for (String candidate : byCell.getOrDefault(cellKey(latCell, lonCell), Collections.emptySet())) {
+                            addIfMatches(result, stations.get(candidate), null, bbox);
+                        }
+                    }
+                }
+            }
+        } else {
+            result.addAll(stations.values());
+        }
+        return result;
+    }
+
+    private static void addIfMatches(List<StationRecord> result, StationRecord record, String state, double[] bbox) {
+        if (record == null) {
+            return;
+        }
+        if (state != null && !state.equals(record.getState())) {
+            return;
+        }
+        if (bbox != null && !(record.getLat() >= bbox[0] && record.getLat() <= bbox[2]
+                && record.getLon() >= bbox[1] && record.getLon() <= bbox[3])) {
+            return;
+        }
+        result.add(record);
+    }
+
+    private void index(StationRecord record) {
+        if (record.getState() != null) {
+            addTo(byState, record.getState(), record.getId());
+        }
+        if (hasLocation(record)) {
+            addTo(byCell, cellKey(record), record.getId());
+        }
+        if (record.getClientAddress() != null) {
+            addTo(byClient, record.getClientAddress(), record.getId());
+        }
+    }
+
+    private void unindex(StationRecord record) {
+        if (record.getState() != null) {
+            removeFrom(byState, record.getState(), record.getId());
+        }
+        if (hasLocation(record)) {
+            removeFrom(byCell, cellKey(record), record.getId());
+        }
+        if (record.getClientAddress() != null) {
+            removeFrom(byClient, record.getClientAddress(), record.getId());
+        }
+    }
+
+    // Adds inside compute so a concurrent removeFrom cannot drop the set we are adding to
+    private static <K> void addTo(ConcurrentHashMap<K, Set<String>> index, K key, String id) {
+        index.compute(key, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private static <K> void removeFrom(ConcurrentHashMap<K, Set<String>> index, K key, String id) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static boolean hasLocation(StationRecord record) {
+        return !Double.isNaN(record.getLat()) && !Double.isNaN(record.getLon());
+    }
+
+    private static long cell(double degrees) {
+        return (long) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(StationRecord record) {
+        return cellKey(cell(record.getLat()), cell(record.getLon()));
+    }
+
+    private static long cellKey(long latCell, long lonCell) {
+        return (latCell << 32) ^ (lonCell & 0xffffffffL);
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-station mode of the content server. Watches a directory of station files with a
+ * WatchService and uploads a file only when its JSON differs from what was last accepted.
+ * Repeated events for a file coalesce into one queued upload, and a few sender threads, each
+ * with its own keep-alive connection, drain the queue; a sender that finds several files
+ * queued sends them as one batch PUT. While nothing changes, a body-less PUT /heartbeat
+ * keeps this content server's stations from expiring on the aggregation server. A sender
+ * whose server fails or turns out to be a read-only backup moves on to the next server.
+ */
+public class StationWatcher {
+    private static final long HEARTBEAT_INTERVAL = 10 * 1000; // well inside the server's 30 second timeout
+    private static final int MAX_BATCH = 500;
+    private static final Path HEARTBEAT = Paths.get(""); // queued in place of a file to send a heartbeat
+
+    private final ServerList servers;
+    private final Path directory;
+    private final boolean binary;
+    private final AtomicLong lamportClock = new AtomicLong();
+    private final BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+    private final Map<Path, String> lastSent = new ConcurrentHashMap<>();
+    private volatile long lastContact;
+    private int backupsInARow; // sender thread only
+
+    /** With binary set, uploads use the binary encoding instead of JSON. */
+    public StationWatcher(ServerList servers, Path directory, boolean binary) {
+        this.servers = servers;
+        this.directory = directory;
+        this.binary = binary;
+    }
+
+    /** Uploads every station once, then only changes and heartbeats; never returns normally. */
+    public void run(int connections) throws IOException, InterruptedException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        enqueueAll();
+
+        for (int i = 0; i < connections; i++) {
+            Thread sender = new Thread(this::sendLoop, "sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+        }
+        Thread heartbeat = new Thread(this::heartbeatLoop, "heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        while (true) {
+            WatchKey key = watcher.take();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    enqueueAll(); // events were lost; unchanged files are filtered out before sending
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    lastSent.remove(directory.resolve((Path) event.context()));
+                } else {
+                    enqueue(directory.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                throw new IOException("Watched directory is no longer accessible: " + directory);
+            }
+        }
+    }
+
+    private void enqueueAll() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                enqueue(file);
+            }
+        }
+    }
+
+    private void enqueue(Path file) {
+        if (Files.isRegularFile(file) && queued.add(file)) {
+            queue.add(file);
+        }
+    }
+
+    private void sendLoop() {
+        Connection connection = new Connection();
+        Backoff backoff = new Backoff(1000, 60000);
+        List<Path> files = new ArrayList<>();
+        while (true) {
+            try {
+                files.clear();
+                files.add(queue.take());
+                queue.drainTo(files, MAX_BATCH - 1);
+
+                if (files.remove(HEARTBEAT)) {
+                    queued.remove(HEARTBEAT);
+                    HttpResponse response = connection.send("/heartbeat", null);
+                    System.out.println("Heartbeat: " + response.status);
+                    if (response.getHeader("Replica-Of") != null) {
+                        // A read-only backup; send the heartbeat to the next server instead
+                        leaveBackup(connection, backoff, response);
+                        if (queued.add(HEARTBEAT)) {
+                            queue.add(HEARTBEAT);
+                        }
+                    } else if (response.status.startsWith("503")) {
+                        Thread.sleep(backoff.nextDelay(response)); // the heartbeat loop queues another
+                        continue;
+                    } else {
+                        backupsInARow = 0;
+                    }
+                }
+
+                // Read each file after unmarking it, so a change made while we send queues it again
+                Map<Path, String> changed = new LinkedHashMap<>();
+                for (Path file : files) {
+                    queued.remove(file);
+                    String jsonData = ContentServer.readWeatherDataFromFile(file.toString());
+                    if (jsonData != null && isStation(jsonData) && !jsonData.equals(lastSent.get(file))) {
+                        changed.put(file, jsonData);
+                    }
+                }
+                if (changed.isEmpty()) {
+                    continue;
+                }
+                String body = changed.size() == 1
+                        ? changed.values().iterator().next()
+                        : "[" + String.join(",", changed.values()) + "]";
+                HttpResponse response = connection.send("/weather.json", body);
+                System.out.println("Uploaded " + changed.size() + " station file(s): " + response.status);
+                if (response.status.startsWith("200")) {
+                    lastSent.putAll(changed);
+                    backoff.reset();
+                    backupsInARow = 0;
+                } else if (response.getHeader("Replica-Of") != null) {
+                    // A read-only backup; try again on the next server
+                    changed.keySet().forEach(this::enqueue);
+                    leaveBackup(connection, backoff, response);
+                } else if (response.status.startsWith("503")) {
+                    // Overloaded; requeue and hold this sender back as long as Retry-After asks
+                    changed.keySet().forEach(this::enqueue);
+                    Thread.sleep(backoff.nextDelay(response));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                connection.failOver();
+                for (Path file : files) {
+                    queued.remove(file);
+                    enqueue(file);
+                }
+                try {
+                    Thread.sleep(backoff.nextDelay(null)); // Wait before retrying
+                } catch (InterruptedException interruptedException) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Moves on from a read-only backup, and backs off once every server has answered as one
+    private void leaveBackup(Connection connection, Backoff backoff, HttpResponse response)
+            throws InterruptedException {
+        connection.failOver();
+        if (++backupsInARow >= servers.size()) {
+            backupsInARow = 0;
+            Thread.sleep(backoff.nextDelay(response));
+        }
+    }
+
+    // Skips files that are not station data, such as an editor's temporary copy
+    private static boolean isStation(String jsonData) {
+        return JsonCodec.parseObject(jsonData).get("id") != null;
+    }
+
+    // Queues a heartbeat whenever the server has not heard from us for a heartbeat interval
+    private void heartbeatLoop() {
+        while (true) {
+            try {
+                Thread.sleep(1000);
+                if (System.currentTimeMillis() - lastContact >= HEARTBEAT_INTERVAL && queued.add(HEARTBEAT)) {
+                    queue.add(HEARTBEAT);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // One keep-alive connection; reopened on the next send after a failure or a server close
+    private final class Connection {
+        private Socket socket;
+        private InputStream in;
+        private ServerList.Server server;
+
+        HttpResponse send(String target, String jsonData) throws IOException {
+            boolean reused = socket != null;
+            try {
+                return sendOnce(target, jsonData);
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+                // The server may have closed the idle connection; retry once on a fresh one
+                close();
+                return sendOnce(target, jsonData);
+            }
+        }
+
+        private HttpResponse sendOnce(String target, String jsonData) throws IOException {
+            if (socket == null) {
+                socket = servers.connect();
+                in = new BufferedInputStream(socket.getInputStream());
+                server = servers.current();
+            }
+            byte[] body = binary && jsonData != null ? ContentServer.toBinary(jsonData) : null;
+            String contentType = body != null ? BinaryCodec.CONTENT_TYPE : "application/json";
+            if (body == null) {
+                body = jsonData == null ? new byte[0] : jsonData.getBytes(StandardCharsets.UTF_8);
+            }
+            String request = "PUT " + target + " HTTP/1.1\r\n" +
+                    "Host: " + server.host + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Length: " + body.length + "\r\n" +
+                    "Lamport-Clock: " + lamportClock.incrementAndGet() + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n";
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body);
+            out.flush();
+
+            HttpResponse response = HttpResponse.read(in);
+            if (response == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            lastContact = System.currentTimeMillis();
+            String serverClock = response.getHeader("Lamport-Clock");
+            if (serverClock != null) {
+                long serverLamportClock = Long.parseLong(serverClock);
+                lamportClock.updateAndGet(clock -> Math.max(clock, serverLamportClock) + 1);
+            }
+            if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+                close();
+            }
+            return response;
+        }
+
+        // Closes the connection and moves every sender on from this server
+        void failOver() {
+            if (server != null) {
+                servers.failed(server);
+            }
+            close();
+        }
+
+        void close() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            socket = null;
+            in = null;
+            server = null;
+        }
+    }
+}
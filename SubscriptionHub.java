@@ -0,0 +1,232 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Fans accepted changes out to Server-Sent Events subscribers without a thread per
+ * subscriber. One dispatcher thread follows the change log, encodes each round of changes
+ * once and hands the same bytes to every subscriber's sink; the server engine does the
+ * writing. Changes that pile up between rounds are coalesced to the latest version of each
+ * station. A subscriber that falls too far behind is disconnected by its sink and resumes
+ * with Last-Event-ID, getting what it missed from the change log or a fresh snapshot.
+ *
+ * Events: "snapshot" (data is the array of all stations), "upsert" (one station) and
+ * "delete" (the id of an expired station). The last event of each round carries an id of
+ * the form epoch:lamport.
+ *
+ * An ordered hub feeds backups instead: nothing is coalesced, every change log entry is sent
+ * in clock order, and each clock is delivered on its own so a subscriber never replays an
+ * entry older than the snapshot it started from.
+ */
+public class SubscriptionHub {
+    private static final long PING_INTERVAL = 15 * 1000;
+    private static final byte[] PING = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ChangeLog changes;
+    private final String epoch;
+    private final boolean ordered;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    public SubscriptionHub(ChangeLog changes, String epoch, boolean ordered) {
+        this.changes = changes;
+        this.epoch = epoch;
+        this.ordered = ordered;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * One subscriber. Rounds published before the engine attaches its sink are buffered, and
+     * rounds already covered by the subscriber's initial response are skipped.
+     */
+    public final class Subscriber implements Consumer<EventSink> {
+        private long coveredUpTo = Long.MAX_VALUE; // nothing is sent before the initial state is known
+        private EventSink sink;
+        private List<Object[]> buffered = new ArrayList<>();
+
+        /** Sets the clock that the initial response (snapshot or replayed delta) reaches. */
+        public synchronized void coveredUpTo(long clock) {
+            coveredUpTo = clock;
+        }
+
+        @Override
+        public synchronized void accept(EventSink sink) {
+            this.sink = sink;
+            for (Object[] round : buffered) {
+                deliver((Long) round[0], (byte[]) round[1]);
+            }
+            buffered = null;
+        }
+
+        synchronized void deliver(long clock, byte[] frames) {
+            if (sink == null) {
+                buffered.add(new Object[] { clock, frames });
+            } else if (clock > coveredUpTo && !sink.send(frames)) {
+                subscribers.remove(this);
+            }
+        }
+
+        synchronized void ping() {
+            if (sink != null && !sink.send(PING)) {
+                subscribers.remove(this);
+            }
+        }
+
+        synchronized void close() {
+            subscribers.remove(this);
+            if (sink != null) {
+                sink.close();
+            }
+        }
+    }
+
+    /** Registers a subscriber; call before reading the state its initial response is built from. */
+    public Subscriber subscribe() {
+        Subscriber subscriber = new Subscriber();
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    public void start() {
+        Thread dispatcher = new Thread(this::dispatchLoop, ordered ? "replication-hub" : "subscription-hub");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private void dispatchLoop() {
+        long clock = changes.head();
+        long lastSent = System.currentTimeMillis();
+        while (true) {
+            try {
+                long head = changes.awaitAfter(clock, PING_INTERVAL);
+                if (head <= clock) {
+                    if (System.currentTimeMillis() - lastSent >= PING_INTERVAL) {
+                        // Keeps proxies from timing out idle streams and finds dead clients
+                        subscribers.forEach(Subscriber::ping);
+                        lastSent = System.currentTimeMillis();
+                    }
+                    continue;
+                }
+                long dispatched = ordered ? dispatchEntries(clock) : dispatchDelta(clock);
+                if (dispatched < 0) {
+                    // The log wrapped past us; subscribers reconnect and get a snapshot
+                    subscribers.forEach(Subscriber::close);
+                    dispatched = head;
+                }
+                clock = dispatched;
+                lastSent = System.currentTimeMillis();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Sends the latest change per station as one round; returns the new clock, or -1 after a gap
+    private long dispatchDelta(long clock) {
+        ChangeLog.Delta delta = changes.since(clock);
+        if (delta == null) {
+            return -1;
+        }
+        byte[] frames = encode(delta).toString().getBytes(StandardCharsets.UTF_8);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.deliver(delta.clock, frames);
+        }
+        return delta.clock;
+    }
+
+    // Sends every entry, one delivery per clock; returns the new clock, or -1 after a gap
+    private long dispatchEntries(long clock) {
+        List<ChangeLog.Entry> entries = changes.entriesSince(clock);
+        if (entries == null) {
+            return -1;
+        }
+        int from = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            long entryClock = entries.get(i).clock;
+            if (i + 1 < entries.size() && entries.get(i + 1).clock == entryClock) {
+                continue; // a batch shares one clock
+            }
+            byte[] frames = encode(entries.subList(from, i + 1)).toString().getBytes(StandardCharsets.UTF_8);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.deliver(entryClock, frames);
+            }
+            clock = entryClock;
+            from = i + 1;
+        }
+        return clock;
+    }
+
+    /** Encodes a round of changes as upsert and delete events. */
+    public StringBuilder encode(ChangeLog.Delta delta) {
+        StringBuilder sb = new StringBuilder();
+        int remaining = delta.changes.size();
+        for (Map.Entry<String, StationRecord> change : delta.changes.entrySet()) {
+            remaining--;
+            if (remaining == 0) {
+                sb.append("id: ").append(eventId(delta.clock)).append('\n');
+            }
+            appendEvent(sb, change.getKey(), change.getValue());
+        }
+        return sb;
+    }
+
+    /** Encodes log entries in order; the last entry of each clock carries the event id. */
+    public StringBuilder encode(List<ChangeLog.Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entries.size(); i++) {
+            ChangeLog.Entry entry = entries.get(i);
+            if (i + 1 == entries.size() || entries.get(i + 1).clock != entry.clock) {
+                sb.append("id: ").append(eventId(entry.clock)).append('\n');
+            }
+            appendEvent(sb, entry.id, entry.record);
+        }
+        return sb;
+    }
+
+    private static void appendEvent(StringBuilder sb, String id, StationRecord record) {
+        if (record != null) {
+            sb.append("event: upsert\ndata: ").append(record.toJSON()).append("\n\n");
+        } else {
+            sb.append("event: delete\ndata: ");
+            new JsonCodec.Writer(sb).value(id);
+            sb.append("\n\n");
+        }
+    }
+
+    /** Encodes every station as one snapshot event. */
+    public StringBuilder encodeSnapshot(Collection<StationRecord> stations, long clock) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("id: ").append(eventId(clock)).append("\nevent: snapshot\ndata: ");
+        JsonCodec.Writer writer = new JsonCodec.Writer(sb).beginArray();
+        for (StationRecord data : stations) {
+            data.writeTo(writer);
+        }
+        writer.endArray();
+        return sb.append("\n\n");
+    }
+
+    private String eventId(long clock) {
+        return epoch + ":" + clock;
+    }
+
+    /** Clock in a Last-Event-ID from this run of the server, or -1 if it is absent or foreign. */
+    public long parseEventId(String lastEventId) {
+        if (lastEventId == null || !lastEventId.startsWith(epoch + ":")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastEventId.substring(epoch.length() + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
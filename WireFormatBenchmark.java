@@ -0,0 +1,124 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compares the JSON and binary upload formats: bytes on the wire, and the time, CPU time
+ * and heap allocation the server spends decoding them, per observation. Decoding starts
+ * from the request body's bytes, as in handlePUTRequest. Uploads of one observation and
+ * batches of batchSize are measured separately.
+ * Run with: java WireFormatBenchmark [observations] [batchSize] [rounds]
+ */
+public class WireFormatBenchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int observations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        List<StationRecord> records = new ArrayList<>(observations);
+        for (int i = 0; i < observations; i++) {
+            Map<String, Object> station = new LinkedHashMap<>();
+            station.put("id", "IDS" + (60000 + i));
+            station.put("name", "Station " + i + ", Adelaide (West Terrace /  ngayirdapira)");
+            station.put("state", "SA");
+            station.put("time_zone", "CST");
+            station.put("lat", -34.9);
+            station.put("lon", 138.6);
+            station.put("local_date_time", "15/04:00pm");
+            station.put("local_date_time_full", 20230715160000L);
+            station.put("air_temp", 13.3);
+            station.put("apparent_t", 9.5);
+            station.put("cloud", "Partly cloudy");
+            station.put("dewpt", 5.7);
+            station.put("press", 1023.9);
+            station.put("rel_hum", 60L);
+            station.put("wind_dir", "S");
+            station.put("wind_spd_kmh", 15L);
+            station.put("wind_spd_kt", 8L);
+            records.add(StationRecord.parse(JsonCodec.toJSON(station)));
+        }
+
+        List<byte[]> jsonSingles = new ArrayList<>();
+        List<byte[]> binarySingles = new ArrayList<>();
+        for (StationRecord record : records) {
+            jsonSingles.add(record.toJSON().getBytes(StandardCharsets.UTF_8));
+            binarySingles.add(StationRecord.toBinary(Collections.singletonList(record)));
+        }
+        List<byte[]> jsonBatches = new ArrayList<>();
+        List<byte[]> binaryBatches = new ArrayList<>();
+        for (int from = 0; from < observations; from += batchSize) {
+            List<StationRecord> batch = records.subList(from, Math.min(observations, from + batchSize));
+            StringBuilder json = new StringBuilder("[");
+            for (StationRecord record : batch) {
+                json.append(json.length() > 1 ? "," : "").append(record.toJSON());
+            }
+            jsonBatches.add(json.append(']').toString().getBytes(StandardCharsets.UTF_8));
+            binaryBatches.add(StationRecord.toBinary(batch));
+        }
+
+        // Warm up all variants before measuring
+        for (int i = 0; i < 5; i++) {
+            measureAll(observations, jsonSingles, binarySingles, jsonBatches, binaryBatches, false);
+        }
+        for (int i = 0; i < rounds; i++) {
+            measureAll(observations, jsonSingles, binarySingles, jsonBatches, binaryBatches, i == rounds - 1);
+        }
+    }
+
+    private static void measureAll(int observations, List<byte[]> jsonSingles, List<byte[]> binarySingles,
+                                   List<byte[]> jsonBatches, List<byte[]> binaryBatches, boolean print) {
+        String[] results = {
+                run("JSON single", observations, jsonSingles, WireFormatBenchmark::parseJSON),
+                run("binary single", observations, binarySingles, WireFormatBenchmark::parseBinary),
+                run("JSON batch", observations, jsonBatches, WireFormatBenchmark::parseJSON),
+                run("binary batch", observations, binaryBatches, WireFormatBenchmark::parseBinary)
+        };
+        // Results are formatted every round, warm-up included, and printed after all are
+        // measured: formatting loads HeapCharBuffer, which deoptimizes ByteBuffer code
+        // compiled before it, so it must not happen first in the last round
+        if (print) {
+            for (String result : results) {
+                System.out.println(result);
+            }
+        }
+    }
+
+    private interface Decoder {
+        List<StationRecord> decode(byte[] body);
+    }
+
+    private static long sink;
+
+    private static String run(String name, int observations, List<byte[]> bodies, Decoder decoder) {
+        long threadId = Thread.currentThread().getId();
+        long wireBytes = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (byte[] body : bodies) {
+            List<StationRecord> decoded = decoder.decode(body);
+            sink += decoded.size();
+            wireBytes += body.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return String.format("%-14s %6.0f wire bytes/obs %8.0f ns/obs %8.0f cpu ns/obs %8.0f heap bytes/obs",
+                name, (double) wireBytes / observations, (double) elapsed / observations,
+                (double) cpu / observations, (double) allocated / observations);
+    }
+
+    // What the server does with a JSON body: decode it to a String, then parse
+    private static List<StationRecord> parseJSON(byte[] body) {
+        String json = new String(body, StandardCharsets.UTF_8);
+        return json.startsWith("[") ? StationRecord.parseBatch(json) : Collections.singletonList(StationRecord.parse(json));
+    }
+
+    private static List<StationRecord> parseBinary(byte[] body) {
+        return StationRecord.parseBinary(ByteBuffer.wrap(body));
+    }
+}
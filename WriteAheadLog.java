@@ -0,0 +1,496 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of accepted updates backed by a periodically compacted snapshot.
+ *
+ * Every record is one line "crc\top\tclock\ttime\tpayload", with the Lamport clock the
+ * change was made at and the wall-clock time it was logged. op is P (payload is the station
+ * JSON), B (payload is a JSON array of stations written by one batch PUT, so a batch is
+ * replayed whole or not at all), D (payload is the station id as a JSON string), H (payload
+ * is the address of a content server that sent a heartbeat, also a JSON string) or L (no payload; the clock is a high-water
+ * mark the server may hand out clocks up to). Every payload is JSON, which escapes tabs and
+ * line breaks, so a record is always exactly one line. Records from before the clock and time were
+ * added, "crc\top\tpayload", are still read. Records queued by concurrent writers are
+ * written and fsynced together by a single committer thread (group commit). Compaction
+ * rotates the log to ".log.1", writes the snapshot next to it and then drops the rotated
+ * segment; replaying a segment on top of a newer snapshot is harmless because records are
+ * idempotent.
+ *
+ * The snapshot has one station JSON per line, after an optional first line "#" + metadata
+ * from the caller. Recovery memory-maps the snapshot and the log and parses them in
+ * parallel chunks split at line boundaries.
+ */
+public class WriteAheadLog {
+    private final Path snapshotPath;
+    private final Path logPath;
+    private final Path rotatedLogPath;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    private volatile long recordsSinceCompaction = 0;
+
+    // Commit statistics, updated by the committer thread only
+    private volatile long commits = 0;
+    private volatile long records = 0;
+    private volatile long totalCommitNanos = 0;
+    private volatile long maxCommitNanos = 0;
+    private volatile long lastFsyncNanos = 0;
+    private final ServerMetrics.Timer writeTime;
+    private final ServerMetrics.Timer fsyncTime;
+    private final ServerMetrics.Timer snapshotTime;
+    private final ServerMetrics.Counter recordsWritten;
+
+    // Recovery splits a file into about four chunks per core, within these bounds
+    private static final long MIN_CHUNK = 1 << 20;
+    private static final long MAX_CHUNK = 1 << 28;
+
+    /** A log record read back by replay. Clock and time are 0 in records written without them. */
+    public static final class Record {
+        public final char op;
+        public final long clock;
+        public final long loggedAt;
+        public final String payload;
+
+        Record(char op, long clock, long loggedAt, String payload) {
+            this.op = op;
+            this.clock = clock;
+            this.loggedAt = loggedAt;
+            this.payload = payload;
+        }
+
+        /** The string a D or H record was written for; older logs have it unquoted. */
+        public String text() {
+            if (payload.startsWith("\"")) {
+                try {
+                    return new JsonCodec.Reader(payload).nextString();
+                } catch (IllegalArgumentException e) {
+                    // not JSON, so an older record whose id happens to start with a quote
+                }
+            }
+            return payload;
+        }
+    }
+
+    private static class Pending {
+        final byte[] line;            // null for a rotation marker
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] line) {
+            this.line = line;
+        }
+    }
+
+    public WriteAheadLog(String snapshotFile) {
+        this(snapshotFile, new ServerMetrics());
+    }
+
+    /** Registers the log's write, fsync and snapshot timings with metrics. */
+    public WriteAheadLog(String snapshotFile, ServerMetrics metrics) {
+        this.snapshotPath = Paths.get(snapshotFile);
+        this.logPath = Paths.get(snapshotFile.replaceFirst("\\.json$", "") + ".log");
+        this.rotatedLogPath = Paths.get(logPath + ".1");
+        this.writeTime = metrics.timer("weather_wal_write_seconds", "Time to write one group of log records, before fsync.");
+        this.fsyncTime = metrics.timer("weather_wal_fsync_seconds", "Time to fsync one group of log records.");
+        this.snapshotTime = metrics.timer("weather_snapshot_write_seconds", "Time to write and fsync a compacted snapshot.");
+        this.recordsWritten = metrics.counter("weather_wal_records_total", "Log records made durable.");
+    }
+
+    public Path getSnapshotPath() {
+        return snapshotPath;
+    }
+
+    /** The metadata line written with the snapshot, or null if there is none. */
+    public String readSnapshotMetadata() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return null;
+        }
+        try (BufferedReader br = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
+            String first = br.readLine();
+            return first != null && first.startsWith("#") ? first.substring(1) : null;
+        }
+    }
+
+    /**
+     * Hands each station line of the snapshot to onLine, from several threads at once and in
+     * no particular order; snapshot lines are one per station, so order does not matter.
+     */
+    public void readSnapshot(Consumer<String> onLine) throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        parseLines(snapshotPath, line -> {
+            if (!line.startsWith("#")) {
+                onLine.accept(line);
+            }
+            return null; // nothing kept, so the whole snapshot is never held twice
+        });
+    }
+
+    /**
+     * Replays the rotated segment (left behind by an interrupted compaction) and then the
+     * live log. Records are checked and handed to parse in parallel, then to apply one at a
+     * time in log order, with what parse returned for them (which may be null). Must be
+     * called before start(); corrupt records, like a torn trailing one, are skipped.
+     */
+    public <T> void replay(Function<Record, T> parse, BiConsumer<Record, T> apply) throws IOException {
+        for (Path segment : new Path[] { rotatedLogPath, logPath }) {
+            if (!Files.exists(segment)) {
+                continue;
+            }
+            List<Object[]> parsed = parseLines(segment, line -> {
+                Record record = parseRecord(line);
+                if (record == null) {
+                    System.err.println("Skipping corrupt log record in " + segment);
+                    return null;
+                }
+                return new Object[] { record, parse.apply(record) };
+            });
+            for (Object[] entry : parsed) {
+                @SuppressWarnings("unchecked")
+                T value = (T) entry[1];
+                apply.accept((Record) entry[0], value);
+                recordsSinceCompaction++;
+            }
+        }
+    }
+
+    // Null if the line is torn or fails its checksum
+    private static Record parseRecord(String line) {
+        int tab = line.indexOf('\t');
+        String record = line.substring(tab + 1);
+        if (tab < 0 || !line.substring(0, tab).equals(crc(record))) {
+            return null;
+        }
+        // JSON payloads never contain a raw tab, so older records without clock and time have two fields
+        String[] parts = record.split("\t", 4);
+        if (parts[0].length() != 1) {
+            return null;
+        }
+        try {
+            if (parts.length == 4) {
+                return new Record(parts[0].charAt(0), Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]);
+            }
+            return parts.length == 2 ? new Record(parts[0].charAt(0), 0, 0, parts[1]) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Memory-maps the file in chunks that end at line boundaries and parses the chunks in
+     * parallel, one line at a time. Returns the non-null results in file order.
+     */
+    static <T> List<T> parseLines(Path file, Function<String, T> parseLine) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkSize = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, size / (4L * ForkJoinPool.getCommonPoolParallelism()) + 1));
+            List<long[]> chunks = new ArrayList<>();
+            for (long start = 0; start < size; ) {
+                long end = nextLineStart(channel, Math.min(size, start + chunkSize));
+                chunks.add(new long[] { start, end });
+                start = end;
+            }
+            try {
+                return chunks.parallelStream()
+                        .map(chunk -> parseChunk(channel, chunk[0], chunk[1], parseLine))
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // The position just after the first newline at or after position, or the end of the file
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < channel.size()) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return channel.size();
+    }
+
+    private static <T> List<T> parseChunk(FileChannel channel, long start, long end, Function<String, T> parseLine) {
+        List<T> results = new ArrayList<>();
+        try {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            // Copied out a block at a time, since scanning the mapping byte by byte is far slower
+            byte[] block = new byte[1 << 16];
+            int filled = 0;
+            for (int position = 0; position < map.limit(); ) {
+                int length = Math.min(block.length - filled, map.limit() - position);
+                map.get(position, block, filled, length);
+                position += length;
+                filled += length;
+                int lineStart = 0;
+                for (int i = 0; i < filled; i++) {
+                    if (block[i] == '\n') {
+                        addLine(results, block, lineStart, i, parseLine);
+                        lineStart = i + 1;
+                    }
+                }
+                if (position == map.limit()) {
+                    addLine(results, block, lineStart, filled, parseLine); // a last line with no newline
+                    break;
+                }
+                // Carry the unfinished line over into the next block
+                filled -= lineStart;
+                System.arraycopy(block, lineStart, block, 0, filled);
+                if (filled == block.length) {
+                    block = Arrays.copyOf(block, block.length * 2);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return results;
+    }
+
+    private static <T> void addLine(List<T> results, byte[] block, int start, int end, Function<String, T> parseLine) {
+        if (end > start) {
+            T result = parseLine.apply(new String(block, start, end - start, StandardCharsets.UTF_8));
+            if (result != null) {
+                results.add(result);
+            }
+        }
+    }
+
+    /** Opens the live log for appending and starts the committer thread. */
+    public void start() throws IOException {
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        Thread committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public CompletableFuture<Void> logPut(String json, long clock) {
+        return enqueue("P", clock, json);
+    }
+
+    /** Logs several station JSON objects as one record. */
+    public CompletableFuture<Void> logBatch(List<String> jsons, long clock) {
+        return enqueue("B", clock, "[" + String.join(",", jsons) + "]");
+    }
+
+    public CompletableFuture<Void> logDelete(String id, long clock) {
+        return enqueue("D", clock, jsonString(id));
+    }
+
+    /** Logs that a content server was heard from, so its expiry deadline survives a restart. */
+    public CompletableFuture<Void> logHeartbeat(String clientAddress, long clock) {
+        return enqueue("H", clock, jsonString(clientAddress));
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        new JsonCodec.Writer(sb).value(value);
+        return sb.toString();
+    }
+
+    /** Logs that clocks up to clock may be sent, so a restart resumes past all of them. */
+    public CompletableFuture<Void> logClockLease(long clock) {
+        return enqueue("L", clock, "");
+    }
+
+    private CompletableFuture<Void> enqueue(String op, long clock, String payload) {
+        String record = op + "\t" + clock + "\t" + System.currentTimeMillis() + "\t" + payload;
+        Pending pending = new Pending((crc(record) + "\t" + record + "\n").getBytes(StandardCharsets.UTF_8));
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /** Blocks until the record behind the future is durable. */
+    public static void await(CompletableFuture<Void> commit) throws IOException {
+        try {
+            commit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for log commit");
+        } catch (ExecutionException e) {
+            throw new IOException("Log commit failed", e.getCause());
+        }
+    }
+
+    public long getRecordsSinceCompaction() {
+        return recordsSinceCompaction;
+    }
+
+    /**
+     * Rotates the log and writes a snapshot. Writers must apply a change in memory before
+     * logging it, and the caller must take {@code snapshotLines} after enqueueing the rotation:
+     * the snapshot then covers every record in the rotated segment, and anything newer is
+     * replayed from the fresh log on top of it.
+     */
+    public CompletableFuture<Void> rotate() {
+        Pending marker = new Pending(null);
+        queue.add(marker);
+        return marker.done;
+    }
+
+    /** metadata, one line with no newline, is read back by readSnapshotMetadata(). */
+    public void writeSnapshot(CompletableFuture<Void> rotation, String metadata, Collection<String> snapshotLines) throws IOException {
+        await(rotation);
+        long start = System.nanoTime();
+        Path tempPath = Paths.get(snapshotPath + ".tmp");
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer bw = new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8))) {
+            bw.write('#');
+            bw.write(metadata);
+            bw.write('\n');
+            for (String line : snapshotLines) {
+                bw.write(line);
+                bw.write('\n');
+            }
+            bw.flush();
+            out.force(false);
+        }
+
+        // Atomically replace the old snapshot, after which the rotated segment is redundant. The
+        // rename must be durable before the delete, or a power loss could keep only the delete
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        Files.deleteIfExists(rotatedLogPath);
+        snapshotTime.record(System.nanoTime() - start);
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) throws IOException {
+        int start = 0;
+        for (int i = 0; i <= batch.size(); i++) {
+            if (i < batch.size() && batch.get(i).line != null) {
+                continue;
+            }
+            // Write everything queued before the marker (or the end) with a single fsync
+            writeAndSync(batch.subList(start, i));
+            if (i < batch.size()) {
+                rotateNow();
+                batch.get(i).done.complete(null);
+            }
+            start = i + 1;
+        }
+    }
+
+    private void writeAndSync(List<Pending> group) throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        for (Pending pending : group) {
+            size += pending.line.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Pending pending : group) {
+            buffer.put(pending.line);
+        }
+        buffer.flip();
+        long writeStart = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        long fsyncStart = System.nanoTime();
+        channel.force(false);
+        long now = System.nanoTime();
+
+        lastFsyncNanos = now - fsyncStart;
+        writeTime.record(fsyncStart - writeStart);
+        fsyncTime.record(now - fsyncStart);
+        recordsWritten.add(group.size());
+        for (Pending pending : group) {
+            long latency = now - pending.enqueuedAt;
+            totalCommitNanos += latency;
+            if (latency > maxCommitNanos) {
+                maxCommitNanos = latency;
+            }
+            pending.done.complete(null);
+        }
+        commits++;
+        records += group.size();
+        recordsSinceCompaction += group.size();
+    }
+
+    private void rotateNow() throws IOException {
+        if (Files.exists(rotatedLogPath)) {
+            // An earlier snapshot failed, so the rotated segment is not in any snapshot yet: keep
+            // it and add the live log to it. Records in both after a crash here replay harmlessly
+            try (FileChannel live = FileChannel.open(logPath, StandardOpenOption.READ);
+                 FileChannel rotated = FileChannel.open(rotatedLogPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long size = live.size();
+                for (long copied = 0; copied < size; ) {
+                    copied += live.transferTo(copied, size - copied, rotated);
+                }
+                rotated.force(false);
+            }
+            channel.truncate(0);
+            channel.force(false);
+        } else {
+            channel.close();
+            Files.move(logPath, rotatedLogPath, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            syncDirectory();
+        }
+        recordsSinceCompaction = 0;
+    }
+
+    // Makes renames, creations and deletions in the log's directory durable
+    private void syncDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(logPath.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /** One-line summary of group commit behaviour, e.g. for periodic logging. */
+    public String stats() {
+        long c = commits;
+        long r = records;
+        return String.format("wal: %d records in %d commits (%.1f per fsync), commit latency avg %.2f ms max %.2f ms, last fsync %.2f ms",
+                r, c, c == 0 ? 0.0 : (double) r / c,
+                r == 0 ? 0.0 : totalCommitNanos / 1e6 / r, maxCommitNanos / 1e6, lastFsyncNanos / 1e6);
+    }
+
+    private static String crc(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
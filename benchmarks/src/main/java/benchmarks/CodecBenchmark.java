@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing and encoding of station observations, over a feed of the given number of stations.
+ * One operation handles every station once, so per-station cost is the score divided by it.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    private static final Class<?> STATION_RECORD = ServerAccess.type("StationRecord");
+    private static final MethodHandle PARSE_JSON =
+            ServerAccess.staticMethod("AggregationServer", "parseJSON", STATION_RECORD, String.class);
+    private static final MethodHandle BUILD_JSON_STRING =
+            ServerAccess.staticMethod("AggregationServer", "buildJSONString", String.class, STATION_RECORD);
+    private static final MethodHandle PARSE_BINARY =
+            ServerAccess.staticMethod("StationRecord", "parseBinary", List.class, ByteBuffer.class);
+    private static final MethodHandle TO_BINARY =
+            ServerAccess.staticMethod("StationRecord", "toBinary", byte[].class, List.class);
+
+    @Param({"10", "1000", "100000"})
+    public int stations;
+
+    private String[] json;
+    private Object[] records;
+    private byte[][] binary;
+
+    @Setup
+    public void setUp() throws Throwable {
+        json = ServerAccess.stationJSON(stations);
+        records = new Object[stations];
+        for (int i = 0; i < stations; i++) {
+            records[i] = PARSE_JSON.invoke(json[i]);
+        }
+        binary = new byte[stations][];
+        for (int i = 0; i < stations; i++) {
+            binary[i] = (byte[]) TO_BINARY.invoke(Collections.singletonList(records[i]));
+        }
+    }
+
+    @Benchmark
+    public void parseJSON(Blackhole blackhole) throws Throwable {
+        for (String station : json) {
+            blackhole.consume(PARSE_JSON.invoke(station));
+        }
+    }
+
+    // The same uploads in the binary format, decoded straight from their bytes
+    @Benchmark
+    public void parseBinary(Blackhole blackhole) throws Throwable {
+        for (byte[] station : binary) {
+            blackhole.consume(PARSE_BINARY.invoke(ByteBuffer.wrap(station)));
+        }
+    }
+
+    @Benchmark
+    public void buildJSONString(Blackhole blackhole) throws Throwable {
+        for (Object record : records) {
+            blackhole.consume(BUILD_JSON_STRING.invoke(record));
+        }
+    }
+}
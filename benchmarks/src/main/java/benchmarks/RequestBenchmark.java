@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Parsing of request heads as the server engines do it before calling handleRequest. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+    private static final MethodHandle PARSE_REQUEST = ServerAccess.staticMethod("HttpRequest", "parse",
+            ServerAccess.type("HttpRequest"), ByteBuffer.class, String.class);
+
+    private byte[] putRequest;
+    private byte[] getRequest;
+
+    @Setup
+    public void setUp() {
+        byte[] body = ServerAccess.stationJSON(1)[0].getBytes(StandardCharsets.UTF_8);
+        putRequest = concat(("PUT /weather.json HTTP/1.1\r\nHost: localhost\r\nUser-Agent: ATOMClient/1/0\r\n"
+                + "Content-Type: application/json\r\nContent-Length: " + body.length + "\r\nLamport-Clock: 42\r\n"
+                + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), body);
+        getRequest = ("GET /weather.json?state=SA HTTP/1.1\r\nHost: localhost\r\nLamport-Clock: 7\r\n"
+                + "Accept-Encoding: gzip, deflate\r\nIf-None-Match: \"18c2f-41\"\r\nConnection: keep-alive\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public Object parsePUT() throws Throwable {
+        return PARSE_REQUEST.invoke(ByteBuffer.wrap(putRequest), "127.0.0.1");
+    }
+
+    @Benchmark
+    public Object parseGET() throws Throwable {
+        return PARSE_REQUEST.invoke(ByteBuffer.wrap(getRequest), "127.0.0.1");
+    }
+
+    private static byte[] concat(byte[] head, byte[] body) {
+        byte[] request = new byte[head.length + body.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(body, 0, request, head.length, body.length);
+        return request;
+    }
+}
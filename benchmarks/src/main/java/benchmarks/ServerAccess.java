@@ -0,0 +1,95 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * The server's classes live in the unnamed package, which code in a named package (as JMH
+ * requires) cannot refer to by name. Benchmarks reach them through method handles instead;
+ * on the class path everything shares the unnamed module, so private members can be looked
+ * up as well. Handles kept in static final fields are constant-folded by the JIT.
+ */
+final class ServerAccess {
+    private ServerAccess() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        Class<?> owner = type(className);
+        try {
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup())
+                    .findStatic(owner, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        Class<?> owner = type(className);
+        try {
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup())
+                    .findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        Class<?> owner = type(className);
+        try {
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup())
+                    .findConstructor(owner, MethodType.methodType(void.class, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object getStatic(String className, String name) {
+        try {
+            return field(className, name).get(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void setStatic(String className, String name, Object value) {
+        try {
+            field(className, name).set(null, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Field field(String className, String name) {
+        try {
+            Field field = type(className).getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Station observations shaped like the content server's, with distinct ids. */
+    static String[] stationJSON(int count) {
+        String[] stations = new String[count];
+        for (int i = 0; i < count; i++) {
+            stations[i] = "{\"id\":\"IDS" + (60000 + i) + "\",\"name\":\"Station " + i + ", Adelaide (West Terrace /  ngayirdapira)\","
+                    + "\"state\":\"" + (i % 2 == 0 ? "SA" : "VIC") + "\",\"time_zone\":\"CST\","
+                    + "\"lat\":" + (-34.9 - i % 100 * 0.01) + ",\"lon\":" + (138.6 + i % 100 * 0.01) + ","
+                    + "\"local_date_time\":\"15/04:00pm\",\"local_date_time_full\":20230715160000,"
+                    + "\"air_temp\":13.3,\"apparent_t\":9.5,\"cloud\":\"Partly cloudy\",\"dewpt\":5.7,"
+                    + "\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+        }
+        return stations;
+    }
+}
@@ -0,0 +1,133 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The server's store paths with the given number of stations already stored. The server's
+ * static state is set up the way main() does it, and its log is written to the working
+ * directory and removed afterwards.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+    private static final int UPDATES_PER_OPERATION = 100;
+    private static final Class<?> STATION_RECORD = ServerAccess.type("StationRecord");
+    private static final Class<?> HTTP_REQUEST = ServerAccess.type("HttpRequest");
+    private static final MethodHandle PARSE_JSON =
+            ServerAccess.staticMethod("AggregationServer", "parseJSON", STATION_RECORD, String.class);
+    private static final MethodHandle BUILD_JSON_STRING =
+            ServerAccess.staticMethod("AggregationServer", "buildJSONString", String.class, STATION_RECORD);
+    private static final MethodHandle STORE_WEATHER_DATA = ServerAccess.staticMethod("AggregationServer",
+            "storeWeatherData", CompletableFuture.class, STATION_RECORD, String.class);
+    private static final MethodHandle GET_WEATHER_DATA_AS_JSON =
+            ServerAccess.staticMethod("AggregationServer", "getWeatherDataAsJSON", String.class);
+    private static final MethodHandle HANDLE_REQUEST = ServerAccess.staticMethod("AggregationServer",
+            "handleRequest", ServerAccess.type("HttpResponse"), HTTP_REQUEST);
+    private static final MethodHandle PARSE_REQUEST =
+            ServerAccess.staticMethod("HttpRequest", "parse", HTTP_REQUEST, ByteBuffer.class, String.class);
+    private static final MethodHandle STORE_PUT =
+            ServerAccess.method("StationStore", "put", STATION_RECORD, STATION_RECORD);
+    private static final MethodHandle STORE_VALUES =
+            ServerAccess.method("StationStore", "values", Collection.class);
+
+    @Param({"10", "1000", "100000"})
+    public int stations;
+
+    private Object store;
+    private Object[] records;
+    private int next;
+    private byte[] getRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        ServerAccess.setStatic("AggregationServer", "history",
+                ServerAccess.constructor("StationHistory", int.class).invoke(360));
+        ServerAccess.setStatic("AggregationServer", "changes",
+                ServerAccess.constructor("ChangeLog", int.class).invoke(10000));
+        ServerAccess.setStatic("AggregationServer", "admission", ServerAccess.constructor("AdmissionControl",
+                int.class, int.class, double.class, double.class, ServerAccess.type("ServerMetrics"))
+                .invoke(16, 256, 0.0, 0.0, ServerAccess.getStatic("AggregationServer", "metrics")));
+        Object wal = ServerAccess.getStatic("AggregationServer", "wal");
+        ServerAccess.method("WriteAheadLog", "start", void.class).invoke(wal);
+
+        store = ServerAccess.getStatic("AggregationServer", "store");
+        String[] json = ServerAccess.stationJSON(stations);
+        records = new Object[stations];
+        for (int i = 0; i < stations; i++) {
+            records[i] = PARSE_JSON.invoke(json[i]);
+            ServerAccess.method("StationRecord", "setClientAddress", void.class, String.class)
+                    .invoke(records[i], "127.0.0.1");
+            STORE_PUT.invoke(store, records[i]);
+        }
+        getRequest = ("GET /weather.json HTTP/1.1\r\nHost: localhost\r\nLamport-Clock: 7\r\n"
+                + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        // Run the paths once, so static state main() sets up and this missed fails here, not mid-run
+        ((CompletableFuture<?>) STORE_WEATHER_DATA.invoke(records[0], "127.0.0.1")).join();
+        Object response = HANDLE_REQUEST.invoke(PARSE_REQUEST.invoke(ByteBuffer.wrap(getRequest), "127.0.0.1"));
+        String status = (String) ServerAccess.field("HttpResponse", "status").get(response);
+        if (!status.startsWith("200")) {
+            throw new IllegalStateException("GET /weather.json answered " + status + " during setup");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get("weather_data.log"));
+    }
+
+    /**
+     * Updates of stored stations as a single-station PUT applies them, including the log
+     * record; the last commit is awaited so group commit is measured and the log keeps up.
+     * The server holds the station's stripe lock around this; uncontended here, it is left out.
+     */
+    @Benchmark
+    @OperationsPerInvocation(UPDATES_PER_OPERATION)
+    public void storeWeatherData() throws Throwable {
+        CompletableFuture<?> commit = null;
+        for (int i = 0; i < UPDATES_PER_OPERATION; i++) {
+            commit = (CompletableFuture<?>) STORE_WEATHER_DATA.invoke(records[next], "127.0.0.1");
+            next = next + 1 == records.length ? 0 : next + 1;
+        }
+        commit.join();
+    }
+
+    /** Every station encoded as a snapshot line, the CPU side of compaction that replaced saveDataList. */
+    @Benchmark
+    public List<String> saveDataList() throws Throwable {
+        Collection<?> values = (Collection<?>) STORE_VALUES.invoke(store);
+        List<String> lines = new ArrayList<>(values.size());
+        for (Object data : values) {
+            lines.add((String) BUILD_JSON_STRING.invoke(data));
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public String getWeatherDataAsJSON() throws Throwable {
+        return (String) GET_WEATHER_DATA_AS_JSON.invoke();
+    }
+
+    /** Header parsing plus handleRequest for a whole-feed GET, answered from the cached snapshot. */
+    @Benchmark
+    public void handleRequest(Blackhole blackhole) throws Throwable {
+        Object request = PARSE_REQUEST.invoke(ByteBuffer.wrap(getRequest), "127.0.0.1");
+        blackhole.consume(HANDLE_REQUEST.invoke(request));
+    }
+}